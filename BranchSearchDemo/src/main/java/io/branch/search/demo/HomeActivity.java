@@ -69,6 +69,16 @@ public class HomeActivity extends AppCompatActivity implements BFSearchBox.IKeyw
             }
         });
 
+        // Warm up the connection as soon as the user is about to search.
+        bfSearchBox.setOnFocusChangeListener(new View.OnFocusChangeListener() {
+            @Override
+            public void onFocusChange(View view, boolean hasFocus) {
+                if (hasFocus && BranchSearch.getInstance() != null) {
+                    BranchSearch.getInstance().prewarm();
+                }
+            }
+        });
+
         displaySDKVersion();
         branchSearchController.setEmptyView(findViewById(android.R.id.empty));
 
@@ -0,0 +1,126 @@
+package io.branch.search;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * BranchAutoSuggestCache class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchAutoSuggestCacheTest {
+    private final BranchConfiguration mConfiguration = new BranchConfiguration();
+
+    private BranchAutoSuggestCache.Lookup lookup(BranchAutoSuggestCache cache, String query) {
+        return cache.lookup(BranchSearchRequest.Create(query), mConfiguration);
+    }
+
+    private void put(BranchAutoSuggestCache cache, String query, String... results) {
+        cache.put(BranchSearchRequest.Create(query), mConfiguration, Arrays.asList(results));
+    }
+
+    private BranchAutoSuggestCache createCache() {
+        BranchAutoSuggestCache cache = new BranchAutoSuggestCache(60000);
+        put(cache, "p", "pizza", "pasta", "pho", "pancakes", "poke");
+        return cache;
+    }
+
+    @Test
+    public void testExactPrefix() {
+        BranchAutoSuggestCache cache = createCache();
+        BranchAutoSuggestCache.Lookup lookup = lookup(cache, "P");
+        Assert.assertNotNull(lookup);
+        Assert.assertTrue(lookup.isFinal);
+        Assert.assertEquals(5, lookup.results.size());
+    }
+
+    @Test
+    public void testShorterPrefix() {
+        // We can't know whether "p" was truncated, so its suggestions are only provisional.
+        BranchAutoSuggestCache cache = createCache();
+        BranchAutoSuggestCache.Lookup lookup = lookup(cache, "pa");
+        Assert.assertNotNull(lookup);
+        Assert.assertFalse(lookup.isFinal);
+        Assert.assertEquals(Arrays.asList("pasta", "pancakes"), lookup.results);
+
+        // Even a short list might be incomplete.
+        put(cache, "piz", "pizza", "pizza near me", "best pizza");
+        lookup = lookup(cache, "pizza n");
+        Assert.assertNotNull(lookup);
+        Assert.assertFalse(lookup.isFinal);
+        Assert.assertEquals(Collections.singletonList("pizza near me"), lookup.results);
+
+        // Nothing to show.
+        Assert.assertNull(lookup(cache, "pu"));
+        Assert.assertNull(lookup(cache, "pizzeria"));
+    }
+
+    @Test
+    public void testCorrectedPrefix() {
+        // The server corrected the query, so the result can't be used for longer prefixes.
+        BranchAutoSuggestCache cache = createCache();
+        put(cache, "piza", "pizza", "pizza hut");
+        BranchAutoSuggestCache.Lookup lookup = lookup(cache, "pizaa");
+        Assert.assertNull(lookup);
+    }
+
+    @Test
+    public void testContext() {
+        // Suggestions for another location, limit or country are not reused.
+        BranchAutoSuggestCache cache = createCache();
+        Assert.assertNull(cache.lookup(BranchSearchRequest.Create("p")
+                .setLatitude(48.85).setLongitude(2.35), mConfiguration));
+        Assert.assertNull(cache.lookup(BranchSearchRequest.Create("p")
+                .setMaxAppResults(1), mConfiguration));
+
+        cache = createCache();
+        mConfiguration.setCountryCode("FR");
+        Assert.assertNull(lookup(cache, "p"));
+    }
+
+    @Test
+    public void testContext_latePut() {
+        // A response to a request from the previous context does not replace the current ones.
+        BranchAutoSuggestCache cache = createCache();
+        BranchSearchRequest request = BranchSearchRequest.Create("pi").setMaxAppResults(1);
+        Assert.assertNull(cache.lookup(request, mConfiguration));
+        cache.put(request, mConfiguration, Collections.singletonList("pizza"));
+        put(cache, "pi", "pie", "pita");
+
+        BranchAutoSuggestCache.Lookup lookup = cache.lookup(request, mConfiguration);
+        Assert.assertNotNull(lookup);
+        Assert.assertTrue(lookup.isFinal);
+        Assert.assertEquals(Collections.singletonList("pizza"), lookup.results);
+    }
+
+    @Test
+    public void testSessionCounters() {
+        BranchAutoSuggestCache cache = createCache();
+        put(cache, "piz", "pizza", "pizza near me");
+
+        lookup(cache, "pi");   // Not in cache.
+        lookup(cache, "piz");  // Exact.
+        lookup(cache, "pizz"); // Shorter prefix, provisional only.
+        Assert.assertEquals(3, cache.getSessionRequestCount());
+        Assert.assertEquals(1, cache.getSessionNetworkCallsAvoided());
+
+        // Starts a new session.
+        lookup(cache, "tacos");
+        Assert.assertEquals(1, cache.getSessionRequestCount());
+        Assert.assertEquals(0, cache.getSessionNetworkCallsAvoided());
+        Assert.assertEquals(4, cache.getRequestCount());
+        Assert.assertEquals(1, cache.getNetworkCallsAvoided());
+    }
+
+    @Test
+    public void testDisabled() {
+        BranchAutoSuggestCache cache = new BranchAutoSuggestCache(0);
+        put(cache, "p", "pizza", "pasta");
+        Assert.assertNull(lookup(cache, "p"));
+    }
+}
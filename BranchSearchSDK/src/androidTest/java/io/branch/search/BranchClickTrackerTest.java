@@ -0,0 +1,134 @@
+package io.branch.search;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * BranchClickTracker class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchClickTrackerTest {
+    private final OkHttpClient mClient = URLConnectionTask.sClient;
+
+    @After
+    public void tearDown() {
+        URLConnectionTask.sClient = mClient;
+    }
+
+    private static Interceptor respond(final int code, final Set<String> received,
+                                       final CountDownLatch latch) {
+        return new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                received.add(chain.request().url().queryParameter("click"));
+                latch.countDown();
+                return new Response.Builder()
+                        .request(chain.request())
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(code)
+                        .message("OK")
+                        .body(ResponseBody.create(MediaType.parse("text/plain"), ""))
+                        .build();
+            }
+        };
+    }
+
+    @Test
+    public void testNoClickIsDropped() throws Throwable {
+        final int CLICKS = 10;
+        final CountDownLatch latch = new CountDownLatch(CLICKS);
+        final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(respond(200, received, latch))
+                .build();
+
+        // Quick clicks should not cancel each other.
+        BranchClickTracker tracker = new BranchClickTracker(null, null);
+        for (int i = 0; i < CLICKS; i++) {
+            tracker.track("https://fakeurl.fakeurl/click?click=" + i);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(CLICKS, received.size());
+        Thread.sleep(100);
+        Assert.assertEquals(CLICKS, tracker.getSentCount());
+        Assert.assertEquals(0, tracker.getFailedCount());
+    }
+
+    @Test
+    public void testJournalReplay() throws Throwable {
+        final int CLICKS = 5;
+        File journal = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "test.clicks");
+        //noinspection ResultOfMethodCallIgnored
+        journal.delete();
+
+        // The server is down: the first event fails, and every event stays in the journal.
+        CountDownLatch failed = new CountDownLatch(1);
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(respond(503, new HashSet<String>(), failed))
+                .build();
+        BranchClickTracker tracker = new BranchClickTracker(null, journal);
+        for (int i = 0; i < CLICKS; i++) {
+            tracker.track("https://fakeurl.fakeurl/click?click=" + i);
+        }
+        Assert.assertTrue(failed.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(0, tracker.getSentCount());
+        Assert.assertEquals(CLICKS, tracker.getPendingCount());
+        tracker.close();
+        Assert.assertTrue(journal.length() > 0);
+
+        // The next session sends them.
+        CountDownLatch latch = new CountDownLatch(CLICKS);
+        Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(respond(200, received, latch))
+                .build();
+        tracker = new BranchClickTracker(null, journal);
+        tracker.replay();
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(CLICKS, received.size());
+        Assert.assertEquals(CLICKS, tracker.getSentCount());
+        Assert.assertEquals(0, tracker.getPendingCount());
+        tracker.close();
+
+        // They were acknowledged, so they are not sent again.
+        tracker = new BranchClickTracker(null, journal);
+        tracker.replay();
+        Thread.sleep(200);
+        Assert.assertEquals(CLICKS, received.size());
+        Assert.assertEquals(0, tracker.getSentCount());
+        Assert.assertEquals(0, tracker.getPendingCount());
+        tracker.close();
+    }
+
+    @Test
+    public void testTrackAfterClose() throws Throwable {
+        BranchClickTracker tracker = new BranchClickTracker(null, null);
+        tracker.close();
+        tracker.track("https://fakeurl.fakeurl/click?click=0");
+        tracker.replay();
+        Assert.assertEquals(0, tracker.getSentCount());
+    }
+}
@@ -0,0 +1,228 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.json.JSONObject;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.branch.search.BranchMetricsSnapshot.PriorityClass;
+
+/**
+ * BranchExecutor class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchExecutorTest {
+    private BranchExecutor mExecutor;
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final List<PriorityClass> mOrder = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        // A single thread, kept busy until we release it.
+        mExecutor = new BranchExecutor(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStarted.countDown();
+                try {
+                    mRelease.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) {}
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        BranchExecutor.setListener(null);
+    }
+
+    private Runnable execute(@NonNull final PriorityClass priorityClass) {
+        return mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(priorityClass);
+            }
+        }, priorityClass);
+    }
+
+    private void releaseAndWait(int count) throws Throwable {
+        mRelease.countDown();
+        for (int i = 0; i < 100 && mOrder.size() < count; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(count, mOrder.size());
+    }
+
+    @Test
+    public void testPriority() throws Throwable {
+        long before = BranchLatencyHistogram.getCount(
+                BranchExecutor.getQueueWait(PriorityClass.BACKGROUND).snapshot());
+        execute(PriorityClass.BACKGROUND);
+        execute(PriorityClass.QUERY_HINT);
+        execute(PriorityClass.AUTOSUGGEST);
+        execute(PriorityClass.SEARCH);
+        releaseAndWait(4);
+
+        Assert.assertEquals(Arrays.asList(PriorityClass.SEARCH, PriorityClass.AUTOSUGGEST,
+                PriorityClass.QUERY_HINT, PriorityClass.BACKGROUND), mOrder);
+        // Waits are recorded per class, across executors.
+        Assert.assertTrue(before < BranchLatencyHistogram.getCount(
+                BranchExecutor.getQueueWait(PriorityClass.BACKGROUND).snapshot()));
+    }
+
+    @Test
+    public void testAging() throws Throwable {
+        execute(PriorityClass.BACKGROUND);
+        // Long enough for the background task to go ahead of new searches.
+        Thread.sleep(1000);
+        execute(PriorityClass.SEARCH);
+        releaseAndWait(2);
+
+        Assert.assertEquals(Arrays.asList(PriorityClass.BACKGROUND, PriorityClass.SEARCH), mOrder);
+    }
+
+    @Test
+    public void testRemove() throws Throwable {
+        Runnable queued = execute(PriorityClass.SEARCH);
+        execute(PriorityClass.BACKGROUND);
+        Assert.assertTrue(mExecutor.remove(queued));
+        releaseAndWait(1);
+
+        Assert.assertEquals(Arrays.asList(PriorityClass.BACKGROUND), mOrder);
+    }
+
+    @Test
+    public void testLane() throws Throwable {
+        BranchExecutor executor = new BranchExecutor(4);
+        try {
+            // A lane of one runs a single task at once, and holds back the others.
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(3);
+            BranchExecutor.Lane lane = executor.newLane(1);
+            for (int i = 0; i < 3; i++) {
+                lane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException ignore) {}
+                        done.countDown();
+                    }
+                }, PriorityClass.SEARCH);
+            }
+            Runnable removed = lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new RuntimeException("Should not happen.");
+                }
+            }, PriorityClass.SEARCH);
+            Thread.sleep(100);
+            Assert.assertEquals(1, executor.getActiveCount());
+            Assert.assertEquals(1, lane.getRunningCount());
+            Assert.assertTrue(lane.remove(removed));
+
+            // Other lanes still get threads.
+            final CountDownLatch other = new CountDownLatch(1);
+            executor.newLane(1).execute(new Runnable() {
+                @Override
+                public void run() {
+                    other.countDown();
+                }
+            }, PriorityClass.BACKGROUND);
+            Assert.assertTrue(other.await(1, TimeUnit.SECONDS));
+
+            release.countDown();
+            Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            Assert.assertEquals(0, lane.getRunningCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testListener() throws Throwable {
+        // Let the busy task of setUp() start first.
+        Assert.assertTrue(mStarted.await(1, TimeUnit.SECONDS));
+        final List<String> events = new CopyOnWriteArrayList<>();
+        BranchExecutor.setListener(new IBranchInstrumentationListener() {
+            @Override
+            public void onTaskStarted(@NonNull PriorityClass priorityClass, long queueWaitNanos,
+                                      int activeThreads, int queueDepth) {
+                events.add("started " + priorityClass + " active:" + activeThreads
+                        + " queued:" + queueDepth);
+            }
+
+            @Override
+            public void onTaskFinished(@NonNull PriorityClass priorityClass, long runNanos) {
+                events.add("finished " + priorityClass);
+            }
+
+            @Override
+            public void onTaskCanceled(@NonNull PriorityClass priorityClass, long cancelNanos) {
+                events.add("canceled " + priorityClass);
+            }
+
+            @Override
+            public void onThreadCreated(int threadCount) {
+                events.add("created");
+            }
+
+            @Override
+            public void onThreadTerminated(int threadCount) {
+                events.add("terminated");
+            }
+        });
+
+        // A task on a new thread.
+        BranchExecutor executor = new BranchExecutor(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, PriorityClass.QUERY_HINT);
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        executor.shutdown();
+        for (int i = 0; i < 50 && !events.contains("terminated"); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(Arrays.asList("created", "started QUERY_HINT active:1 queued:0",
+                "finished QUERY_HINT", "terminated"), events);
+
+        // A request that is canceled while it waits for the busy thread.
+        events.clear();
+        URLConnectionTask task = URLConnectionTask.forGet("https://fakeurl.fakeurl",
+                new IURLConnectionEvents() {
+                    @Override
+                    public void onResult(@NonNull JSONObject response) {
+                        events.add("delivered");
+                    }
+                });
+        task.setExecutor(mExecutor.newLane(1), PriorityClass.BACKGROUND);
+        task.execute(URLConnectionTask.sClient, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        }, null);
+        task.cancel();
+        Assert.assertEquals(Arrays.asList("canceled BACKGROUND", "delivered"), events);
+        Assert.assertEquals(0, mExecutor.getQueue().size());
+    }
+}
@@ -1,5 +1,6 @@
 package io.branch.search;
 
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
 import android.support.test.runner.AndroidJUnit4;
@@ -17,14 +18,19 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import io.branch.search.util.AssetUtils;
+
 /**
  * SearchRequest Tests.
  */
 @RunWith(AndroidJUnit4.class)
 public class BranchHammerTest extends BranchTest {
     private static final String TAG = "Branch::HammerTest";
+    private static final Executor POST_PROCESSING_EXECUTOR = Executors.newSingleThreadExecutor();
 
     private static BranchSearchRequest createTestRequest(String query) {
         BranchSearchRequest request = BranchSearchRequest.Create(query);
@@ -39,11 +45,24 @@ public class BranchHammerTest extends BranchTest {
     }
 
     private static BranchConfiguration createTestConfiguration() {
+        return createTestConfiguration(0);
+    }
+
+    private static BranchConfiguration createTestConfiguration(long coalescingWindow) {
         BranchConfiguration config = new BranchConfiguration();
 
         config.setBranchKey("key_live_jgKhogSvbj1sZ7PJiQ47dfkozAmfeA4H");
         config.setCountryCode("IN");
 
+        // We want to hammer the network, not the caches.
+        config.setSearchCacheTTL(0);
+        config.setAutoSuggestCacheTTL(0);
+        config.setQueryHintCacheTTL(0);
+
+        for (BranchSearch.Channel channel : BranchSearch.Channel.values()) {
+            config.setCoalescingWindow(channel, coalescingWindow, true);
+        }
+
         return config;
     }
 
@@ -82,30 +101,38 @@ public class BranchHammerTest extends BranchTest {
 
         @Override
         public void onBranchSearchResult(BranchSearchResult result) {
-            mEnd = System.currentTimeMillis();
-            mSuccess = true;
-            Log.d(TAG, "Query#:" + mId + " ENDED. Success:" + mSuccess + " Left:" + mLatch.getCount());
-            mLatch.countDown();
+            onEnd(true);
         }
 
         @Override
         public void onBranchSearchError(BranchSearchError error) {
-            mEnd = System.currentTimeMillis();
-            Log.d(TAG, "Query#:" + mId + " ENDED. Success:" + mSuccess + " Left:" + mLatch.getCount());
-            mLatch.countDown();
+            onEnd(false);
         }
 
         @Override
         public void onQueryResult(BranchQueryResult result) {
-            mEnd = System.currentTimeMillis();
-            mSuccess = true;
-            Log.d(TAG, "Query#:" + mId + " ENDED. Success:" + mSuccess + " Left:" + mLatch.getCount());
-            mLatch.countDown();
+            onEnd(true);
         }
 
         @Override
         public void onError(BranchSearchError error) {
+            onEnd(false);
+        }
+
+        // Like a host that post-processes results in the background, hop off the main thread
+        // before considering the query done.
+        private void onEnd(final boolean success) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                POST_PROCESSING_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onEnd(success);
+                    }
+                });
+                return;
+            }
             mEnd = System.currentTimeMillis();
+            if (success) mSuccess = true;
             Log.d(TAG, "Query#:" + mId + " ENDED. Success:" + mSuccess + " Left:" + mLatch.getCount());
             mLatch.countDown();
         }
@@ -151,9 +178,31 @@ public class BranchHammerTest extends BranchTest {
     @Test
     @UiThread // remove non-ui thread optimizations we have
     public void testSerialQueries() throws Throwable {
+        initializeAndWarmUp();
+        doSerialQueries();
+    }
+
+    // Same as testSerialQueries, but requests are coalesced.
+    @Test
+    @UiThread // remove non-ui thread optimizations we have
+    public void testSerialQueries_coalescing() throws Throwable {
+        initializeAndWarmUp(createTestConfiguration(300));
+        doSerialQueries();
+    }
+
+    // Same as testSerialQueries, but results are delivered straight to the post-processing
+    // executor, instead of going through the main thread.
+    @Test
+    @UiThread // remove non-ui thread optimizations we have
+    public void testSerialQueries_callbackExecutor() throws Throwable {
+        initializeAndWarmUp(createTestConfiguration()
+                .setCallbackExecutor(POST_PROCESSING_EXECUTOR));
+        doSerialQueries();
+    }
+
+    private void doSerialQueries() throws Throwable {
         final int MAX = 50;
         final long KEYBOARD_DELAY = 200L;
-        initializeAndWarmUp();
 
         // Execute MAX serial queries on a background thread.
         final CountDownLatch threadLatch = new CountDownLatch(1);
@@ -199,8 +248,50 @@ public class BranchHammerTest extends BranchTest {
         logStats(queryList); // stats do not log totally right for DoQuery3
     }
 
+    // Same as testThreeEndpoints, but offline: requests are answered in process, with
+    // reproducible latencies and errors, so only the SDK itself is measured.
+    @Test
+    @UiThread // remove non-ui thread optimizations we have
+    public void testThreeEndpoints_fakeTransport() throws Throwable {
+        final int MAX = 50;
+        String queryHint = AssetUtils.readJsonFile(getTestContext(), "success_queryhint.json");
+        BranchFakeTransport transport = new BranchFakeTransport(42)
+                .setLatency(100, 0.5)
+                .setErrorRates(0.01F, 0.01F)
+                .setResponse("search/",
+                        AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json"))
+                .setResponse("queryhint", queryHint)
+                .setResponse("autosuggest", queryHint);
+        int connections = URLConnectionTask.getNewConnectionCount()
+                + URLConnectionTask.getReusedConnectionCount();
+        initializeAndWarmUp(createTestConfiguration().setTransport(transport));
+
+        CountDownLatch queryLatch = new CountDownLatch(MAX * 3);
+        List<DoQuery> queryList = new ArrayList<>();
+
+        for (int i = 0; i < MAX; i++) {
+            DoQuery q = new DoQuery3(i, "pizza", queryLatch);
+            queryList.add(q);
+            q.start();
+        }
+
+        // Without a network, nothing should be left behind.
+        Assert.assertTrue(queryLatch.await(MAX * 2, TimeUnit.SECONDS));
+        logStats(queryList);
+        Log.w(TAG, "[final stats] fake transport requests:" + transport.getRequestCount() +
+                " canceled while waiting:" + transport.getCanceledCount());
+        Assert.assertTrue(transport.getRequestCount() > 0);
+        // Nothing went to the network, not even the connection prewarm.
+        Assert.assertEquals(connections, URLConnectionTask.getNewConnectionCount()
+                + URLConnectionTask.getReusedConnectionCount());
+    }
+
     private void initializeAndWarmUp() throws Throwable {
-        initBranch(createTestConfiguration());
+        initializeAndWarmUp(createTestConfiguration());
+    }
+
+    private void initializeAndWarmUp(BranchConfiguration config) throws Throwable {
+        initBranch(config);
         Thread.sleep(10);
 
         // Warm-up the threads
@@ -248,5 +339,27 @@ public class BranchHammerTest extends BranchTest {
                 " timeouts:" + timeouts);
         Log.w(TAG, "[final stats] average success latency:" + successLatency);
         Log.w(TAG, "[final stats] average failure latency:" + failureLatency);
+        Log.w(TAG, "[final stats] reused connections:" +
+                BranchSearch.getInstance().getReusedConnectionCount() +
+                " new connections:" + BranchSearch.getInstance().getNewConnectionCount());
+        int sdkThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("BranchThread")) sdkThreads++;
+        }
+        int peakThreads = URLConnectionNetworkHandler.getSharedExecutor().getLargestPoolSize();
+        Log.w(TAG, "[final stats] live threads:" + Thread.activeCount() +
+                " sdk threads:" + sdkThreads +
+                " peak network threads:" + peakThreads);
+        // All channels share the same threads.
+        Assert.assertTrue(peakThreads <= URLConnectionNetworkHandler.POOL_SIZE);
+        for (BranchSearch.Channel channel : BranchSearch.Channel.values()) {
+            Log.w(TAG, "[final stats] " + channel +
+                    " sent:" + BranchSearch.getInstance().getSentRequestCount(channel) +
+                    " coalesced:" + BranchSearch.getInstance().getCoalescedRequestCount(channel) +
+                    " hedged:" + BranchSearch.getInstance().getHedgedRequestCount(channel) +
+                    " hedge wins:" + BranchSearch.getInstance().getHedgeWinCount(channel));
+            Log.w(TAG, "[final stats] " + channel + " " +
+                    BranchSearch.getInstance().getMetricsSnapshot().getChannelMetrics(channel));
+        }
     }
 }
@@ -0,0 +1,51 @@
+package io.branch.search;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BranchLatencyHistogram class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchLatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        // Buckets are contiguous and increasing.
+        int last = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int index = BranchLatencyHistogram.indexOf(micros);
+            Assert.assertTrue(index == last || index == last + 1);
+            last = index;
+        }
+        Assert.assertEquals(BranchLatencyHistogram.BUCKETS - 1,
+                BranchLatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        BranchLatencyHistogram histogram = new BranchLatencyHistogram();
+        long[] empty = histogram.snapshot();
+        Assert.assertTrue(Double.isNaN(BranchLatencyHistogram.getPercentileMillis(empty, 0.5F)));
+
+        // 1..100 milliseconds.
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        long[] snapshot = histogram.snapshot();
+        Assert.assertEquals(100, BranchLatencyHistogram.getCount(snapshot));
+        assertWithin(50, BranchLatencyHistogram.getPercentileMillis(snapshot, 0.5F));
+        assertWithin(90, BranchLatencyHistogram.getPercentileMillis(snapshot, 0.9F));
+        assertWithin(99, BranchLatencyHistogram.getPercentileMillis(snapshot, 0.99F));
+    }
+
+    private static void assertWithin(double expected, double actual) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 0.25);
+    }
+}
@@ -0,0 +1,69 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BranchQueryHintCache class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchQueryHintCacheTest extends BranchTest {
+
+    @Before
+    public void setUp() throws Throwable {
+        super.setUp();
+        getTestContext().getSharedPreferences("io.branch.search.queryhint", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    private BranchConfiguration createConfiguration(String countryCode) {
+        return new BranchConfiguration()
+                .setBranchKey("key_live_test")
+                .setCountryCode(countryCode);
+    }
+
+    @Test
+    public void testPersistence() {
+        BranchConfiguration config = createConfiguration("US");
+        List<String> hints = Arrays.asList("pizza", "movies", "weather");
+        new BranchQueryHintCache(getTestContext(), 60000).put(config, hints);
+
+        // A new cache should read the hints back.
+        BranchQueryHintCache cache = new BranchQueryHintCache(getTestContext(), 60000);
+        Assert.assertEquals(hints, cache.get(config));
+        Assert.assertTrue(cache.isFresh());
+
+        // But not for a different configuration.
+        Assert.assertNull(cache.get(createConfiguration("IN")));
+    }
+
+    @Test
+    public void testStale() throws Throwable {
+        BranchConfiguration config = createConfiguration("US");
+        List<String> hints = Arrays.asList("pizza", "movies", "weather");
+        BranchQueryHintCache cache = new BranchQueryHintCache(getTestContext(), 50);
+        cache.put(config, hints);
+        Assert.assertTrue(cache.isFresh());
+
+        // Stale hints are still returned.
+        Thread.sleep(100);
+        Assert.assertEquals(hints, cache.get(config));
+        Assert.assertFalse(cache.isFresh());
+    }
+
+    @Test
+    public void testDisabled() {
+        BranchConfiguration config = createConfiguration("US");
+        BranchQueryHintCache cache = new BranchQueryHintCache(getTestContext(), 0);
+        cache.put(config, Arrays.asList("pizza", "movies", "weather"));
+        Assert.assertNull(cache.get(config));
+    }
+}
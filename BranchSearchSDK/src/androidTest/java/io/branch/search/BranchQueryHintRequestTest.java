@@ -26,7 +26,7 @@ public class BranchQueryHintRequestTest {
         config.setCountryCode("ZZ");
         config.setGoogleAdID("XYZ");
 
-        JSONObject jsonIn = BranchSearchInterface.createPayload(requestIn, config);
+        JSONObject jsonIn = BranchSearchInterface.createPayload(requestIn, config).toJson();
 
         Log.d("Branch", "QueryHint::testRequestCreation(): " + jsonIn.toString());
 
@@ -44,7 +44,7 @@ public class BranchQueryHintRequestTest {
     public void testHasDeviceInfo() throws Throwable {
         BranchQueryHintRequest request = BranchQueryHintRequest.Create();
 
-        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration());
+        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration()).toJson();
 
         Assert.assertNotNull(jsonOut.getString(BranchDeviceInfo.JSONKey.Brand.toString()));
         Assert.assertNotNull(jsonOut.getString(BranchDeviceInfo.JSONKey.Model.toString()));
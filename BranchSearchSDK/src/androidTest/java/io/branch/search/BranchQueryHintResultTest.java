@@ -1,6 +1,7 @@
 package io.branch.search;
 
 import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
 
 import junit.framework.Assert;
 
@@ -8,6 +9,7 @@ import org.json.JSONObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.StringReader;
 import java.util.List;
 
 import io.branch.search.util.AssetUtils;
@@ -59,6 +61,19 @@ public class BranchQueryHintResultTest extends BranchTest {
         Assert.assertEquals(0, hints.size());
     }
 
+    @Test
+    public void testResultSuccess_fromReader() throws Throwable {
+        String[] files = { "success_queryhint.json", "success_queryhint_empty1.json",
+                "success_queryhint_empty2.json" };
+        for (String file : files) {
+            String response = AssetUtils.readJsonFile(getTestContext(), file);
+            BranchQueryResult expected = BranchQueryResult.createFromJson(new JSONObject(response));
+            BranchQueryResult actual = BranchQueryResult.createFromJsonReader(
+                    new JsonReader(new StringReader(response)));
+            Assert.assertEquals(file, expected.getQueryResults(), actual.getQueryResults());
+        }
+    }
+
     @Test
     public void testResultError() throws Throwable {
         String response = AssetUtils.readJsonFile(getTestContext(), "err_queryhint.json");
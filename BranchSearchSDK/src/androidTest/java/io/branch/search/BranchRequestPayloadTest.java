@@ -0,0 +1,210 @@
+package io.branch.search;
+
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+import okio.Buffer;
+
+/**
+ * BranchRequestPayload tests and benchmarks.
+ * Compares payloads that put and encode device and configuration info on every request with
+ * payloads that reuse the encoded {@link BranchStaticPayload}, and the JSON string with the
+ * streamed {@link BranchRequestBody}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchRequestPayloadTest extends BranchTest {
+    private static final String TAG = "Branch::PayloadTest";
+
+    private static final int WARM_UP = 100;
+    private static final int ROUNDS = 1000;
+
+    private static class Stats {
+        long nanos;
+        long allocSize;
+    }
+
+    private static BranchConfiguration createConfiguration() {
+        BranchConfiguration config = new BranchConfiguration();
+        config.setBranchKey("key_live_123");
+        config.setCountryCode("US");
+        config.setGoogleAdID("XYZ");
+        return config;
+    }
+
+    // What createPayload did before the static payload.
+    private static String encodeFull(BranchSearchRequest request, BranchConfiguration config) {
+        JSONObject payload = request.convertToJson();
+        BranchDeviceInfo.addDeviceInfo(payload);
+        config.addConfigurationInfo(payload);
+        return payload.toString();
+    }
+
+    private static String encode(BranchSearchRequest request, BranchConfiguration config) {
+        return BranchSearchInterface.createPayload(request, config).toString();
+    }
+
+    private static Stats measure(BranchSearchRequest request, BranchConfiguration config,
+                                 boolean full) {
+        for (int i = 0; i < WARM_UP; i++) {
+            if (full) encodeFull(request, config); else encode(request, config);
+        }
+
+        Stats stats = new Stats();
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            if (full) encodeFull(request, config); else encode(request, config);
+        }
+        stats.nanos = (System.nanoTime() - start) / ROUNDS;
+        stats.allocSize = (getAllocatedBytes() - allocated) / ROUNDS;
+        return stats;
+    }
+
+    @Test
+    public void testSamePayload() throws Throwable {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        request.setLatitude(10);
+        request.setLongitude(20);
+        BranchConfiguration config = createConfiguration();
+
+        JSONObject expected = new JSONObject(encodeFull(request, config));
+        JSONObject actual = new JSONObject(encode(request, config));
+        Assert.assertEquals(expected.length(), actual.length());
+        Iterator<String> keys = expected.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.equals(BranchDiscoveryRequest.JSONKey.Timestamp.toString())) continue;
+            Assert.assertEquals(key, expected.get(key).toString(), actual.get(key).toString());
+        }
+    }
+
+    @Test
+    public void testInvalidation() throws Throwable {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchConfiguration config = createConfiguration();
+        String key = BranchConfiguration.JSONKey.GAID.toString();
+        Assert.assertEquals("XYZ", new JSONObject(encode(request, config)).getString(key));
+
+        config.setGoogleAdID("ABC");
+        Assert.assertEquals("ABC", new JSONObject(encode(request, config)).getString(key));
+
+        config.setLocale(new Locale("xx_YY"));
+        key = BranchConfiguration.JSONKey.Locale.toString();
+        Assert.assertEquals("xx_yy", new JSONObject(encode(request, config)).getString(key));
+    }
+
+    private static Stats measureStreaming(BranchRequestBody body, Buffer buffer)
+            throws IOException {
+        for (int i = 0; i < WARM_UP; i++) {
+            body.writeTo(buffer);
+            buffer.clear();
+        }
+
+        Stats stats = new Stats();
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            body.writeTo(buffer);
+            buffer.clear();
+        }
+        stats.nanos = (System.nanoTime() - start) / ROUNDS;
+        stats.allocSize = (getAllocatedBytes() - allocated) / ROUNDS;
+        return stats;
+    }
+
+    @Test
+    public void testStreamedPayload() throws Throwable {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza \"/\\\n\u0001\u00e9\u20ac\ud83c\udf55");
+        request.setLatitude(10.25);
+        request.setLongitude(-20);
+        request.disableQueryModification();
+        BranchRequestPayload payload = BranchSearchInterface.createPayload(request, createConfiguration());
+
+        // Same as the JSON string, which uses the same timestamp.
+        BranchRequestBody body = new BranchRequestBody(payload, -1);
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        Assert.assertEquals(buffer.size(), body.contentLength());
+        Assert.assertEquals(payload.toString(), buffer.readUtf8());
+
+        body = new BranchRequestBody(payload, 42);
+        body.writeTo(buffer);
+        Assert.assertEquals(buffer.size(), body.contentLength());
+        JSONObject json = new JSONObject(buffer.readUtf8());
+        Assert.assertEquals(42, json.getLong("lr_rtt"));
+        Assert.assertEquals(request.getQuery(), json.getString(BranchSearchRequest.JSONKey.UserQuery.toString()));
+    }
+
+    @Test
+    public void testPayloadAsJson() throws Throwable {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchConfiguration configuration = createConfiguration();
+        BranchRequestPayload payload = BranchSearchInterface.createPayload(request, configuration);
+        JSONObject staticValues = BranchStaticPayload.get(configuration).getJson();
+        JSONObject values = request.convertToJson();
+
+        // The static and the per-request values, plus the timestamp.
+        JSONObject json = payload.toJson();
+        Assert.assertEquals(staticValues.length() + values.length() + 1, json.length());
+        Iterator<String> keys = staticValues.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Assert.assertFalse(json.isNull(key));
+        }
+
+        // Same as what is sent.
+        Buffer buffer = new Buffer();
+        new BranchRequestBody(payload, -1).writeTo(buffer);
+        Assert.assertEquals(json.toString(), buffer.readUtf8());
+        Assert.assertEquals(json.toString(), payload.toString());
+    }
+
+    @Test
+    @SdkSuppress(minSdkVersion = 23)
+    public void testStreamingBenchmark() throws Throwable {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        request.setLatitude(10);
+        request.setLongitude(20);
+        BranchConfiguration config = createConfiguration();
+        BranchRequestPayload payload = BranchSearchInterface.createPayload(request, config);
+
+        Stats string = measure(request, config, false);
+        Stats streamed = measureStreaming(new BranchRequestBody(payload, 42), new Buffer());
+        Log.w(TAG, "[payload] string   us:" + string.nanos / 1000
+                + " allocated bytes:" + string.allocSize);
+        Log.w(TAG, "[payload] streamed us:" + streamed.nanos / 1000
+                + " allocated bytes:" + streamed.allocSize);
+
+        // Buffer segments are pooled, so encoding a request creates no garbage. Other threads
+        // may allocate while we measure, so only check that it is far below the string.
+        Assert.assertTrue(streamed.allocSize * 10 < string.allocSize);
+    }
+
+    @Test
+    @SdkSuppress(minSdkVersion = 23)
+    public void testStaticPayloadBenchmark() {
+        BranchSearchRequest request = BranchSearchRequest.Create("pizza");
+        BranchConfiguration config = createConfiguration();
+
+        Stats full = measure(request, config, true);
+        Stats reused = measure(request, config, false);
+        Log.w(TAG, "[payload] full   us:" + full.nanos / 1000
+                + " allocated bytes:" + full.allocSize);
+        Log.w(TAG, "[payload] static us:" + reused.nanos / 1000
+                + " allocated bytes:" + reused.allocSize);
+
+        // Device and configuration info are not put nor boxed anymore.
+        Assert.assertTrue(reused.allocSize < full.allocSize);
+    }
+}
@@ -0,0 +1,113 @@
+package io.branch.search;
+
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import io.branch.search.util.AssetUtils;
+
+/**
+ * BranchResponseParser benchmarks.
+ * Compares the JSONObject tree parser with the streaming parser on a large response,
+ * starting from the raw bytes as they would come from the network.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchResponseParserTest extends BranchTest {
+    private static final String TAG = "Branch::ParserTest";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int APP_COUNT = 100;
+    private static final int LINK_COUNT = 200;
+    private static final int WARM_UP = 3;
+    private static final int ROUNDS = 5;
+
+    private static class Stats {
+        long nanos;
+        long allocSize;
+    }
+
+    // A response as large as the ones the hammer test asks for.
+    private byte[] createLargeResponse() throws Throwable {
+        String response = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
+        JSONObject source = new JSONObject(response);
+        JSONObject app = source.getJSONArray("results").getJSONObject(0);
+        JSONObject link = app.getJSONArray("deep_links").getJSONObject(0);
+
+        JSONArray links = new JSONArray();
+        for (int i = 0; i < LINK_COUNT; i++) {
+            links.put(new JSONObject(link.toString()).put("entity_id", "entity_" + i));
+        }
+        app.put("deep_links", links);
+
+        JSONArray apps = new JSONArray();
+        for (int i = 0; i < APP_COUNT; i++) {
+            apps.put(new JSONObject(app.toString()).put("app_store_id", "com.app" + i));
+        }
+        source.put("results", apps);
+        return source.toString().getBytes(UTF_8);
+    }
+
+    private static BranchSearchResult parseTree(BranchSearchRequest request, byte[] bytes)
+            throws Throwable {
+        return BranchResponseParser.parse(request, new JSONObject(new String(bytes, UTF_8)));
+    }
+
+    private static BranchSearchResult parseStream(BranchSearchRequest request, byte[] bytes)
+            throws Throwable {
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(bytes), UTF_8));
+        try {
+            return BranchResponseParser.parse(request, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Stats measure(BranchSearchRequest request, byte[] bytes, boolean stream)
+            throws Throwable {
+        for (int i = 0; i < WARM_UP; i++) {
+            if (stream) parseStream(request, bytes); else parseTree(request, bytes);
+        }
+
+        Stats stats = new Stats();
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            BranchSearchResult result = stream ? parseStream(request, bytes) : parseTree(request, bytes);
+            Assert.assertEquals(APP_COUNT, result.getResults().size());
+        }
+        stats.nanos = (System.nanoTime() - start) / ROUNDS;
+        stats.allocSize = (getAllocatedBytes() - allocated) / ROUNDS;
+        return stats;
+    }
+
+    @Test
+    @SdkSuppress(minSdkVersion = 23)
+    public void testLargeResponse() throws Throwable {
+        byte[] bytes = createLargeResponse();
+        BranchSearchRequest request = BranchSearchRequest.Create("Mexican");
+
+        Stats tree = measure(request, bytes, false);
+        Stats stream = measure(request, bytes, true);
+        Log.w(TAG, "[parser] bytes:" + bytes.length);
+        Log.w(TAG, "[parser] tree   ms:" + tree.nanos / 1000000
+                + " allocated bytes:" + tree.allocSize);
+        Log.w(TAG, "[parser] stream ms:" + stream.nanos / 1000000
+                + " allocated bytes:" + stream.allocSize);
+
+        // The streaming parser never holds the response string nor the JSONObject tree.
+        Assert.assertTrue(stream.allocSize < tree.allocSize);
+    }
+}
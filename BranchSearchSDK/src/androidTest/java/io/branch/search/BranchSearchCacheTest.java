@@ -0,0 +1,108 @@
+package io.branch.search;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import io.branch.search.util.AssetUtils;
+
+/**
+ * BranchSearchCache class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchSearchCacheTest extends BranchTest {
+
+    private BranchSearchResult createResult(BranchSearchRequest request) throws Throwable {
+        String response = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
+        return BranchResponseParser.parse(request, new JSONObject(response));
+    }
+
+    private BranchConfiguration createConfiguration() {
+        return new BranchConfiguration().setCountryCode("US");
+    }
+
+    @Test
+    public void testHitAndMiss() throws Throwable {
+        BranchConfiguration config = createConfiguration();
+        BranchSearchCache cache = new BranchSearchCache(1024 * 1024, 60000);
+        BranchSearchRequest request = BranchSearchRequest.Create("food");
+
+        Assert.assertNull(cache.get(request, config));
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.put(request, config, createResult(request));
+        BranchSearchResult result = cache.get(request, config);
+        Assert.assertNotNull(result);
+        Assert.assertSame(request, result.getBranchSearchRequest());
+        Assert.assertTrue(result.getResults().size() > 0);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertTrue(cache.getSize() > 0);
+    }
+
+    @Test
+    public void testKeyNormalization() throws Throwable {
+        BranchConfiguration config = createConfiguration();
+        BranchSearchCache cache = new BranchSearchCache(1024 * 1024, 60000);
+        BranchSearchRequest request = BranchSearchRequest.Create("Food ")
+                .setLatitude(37.77491)
+                .setLongitude(-122.41941);
+        cache.put(request, config, createResult(request));
+
+        // Same query, nearby location.
+        BranchSearchRequest same = BranchSearchRequest.Create("food")
+                .setLatitude(37.77493)
+                .setLongitude(-122.41939);
+        Assert.assertNotNull(cache.get(same, config));
+
+        // Different limits.
+        BranchSearchRequest other = BranchSearchRequest.Create("food")
+                .setLatitude(37.77491)
+                .setLongitude(-122.41941)
+                .setMaxAppResults(10);
+        Assert.assertNull(cache.get(other, config));
+
+        // Different country.
+        Assert.assertNull(cache.get(request, createConfiguration().setCountryCode("IN")));
+    }
+
+    @Test
+    public void testExpiration() throws Throwable {
+        BranchConfiguration config = createConfiguration();
+        BranchSearchCache cache = new BranchSearchCache(1024 * 1024, 50);
+        BranchSearchRequest request = BranchSearchRequest.Create("food");
+        cache.put(request, config, createResult(request));
+        Assert.assertNotNull(cache.get(request, config));
+
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(request, config));
+    }
+
+    @Test
+    public void testDisabled() throws Throwable {
+        BranchConfiguration config = createConfiguration();
+        BranchSearchRequest request = BranchSearchRequest.Create("food");
+
+        BranchSearchCache noTTL = new BranchSearchCache(1024 * 1024, 0);
+        noTTL.put(request, config, createResult(request));
+        Assert.assertNull(noTTL.get(request, config));
+
+        BranchSearchCache noSize = new BranchSearchCache(0, 60000);
+        noSize.put(request, config, createResult(request));
+        Assert.assertNull(noSize.get(request, config));
+    }
+
+    @Test
+    public void testSizeBudget() throws Throwable {
+        BranchConfiguration config = createConfiguration();
+        BranchSearchRequest request = BranchSearchRequest.Create("food");
+
+        // A budget that is too small for a single result should not hold anything.
+        BranchSearchCache cache = new BranchSearchCache(128, 60000);
+        cache.put(request, config, createResult(request));
+        Assert.assertNull(cache.get(request, config));
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
@@ -1,9 +1,15 @@
 package io.branch.search;
 
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+import android.util.Log;
 
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,16 +18,36 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.branch.search.util.AssetUtils;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 /**
  * BranchSearchInterface class tests.
  */
 @RunWith(AndroidJUnit4.class)
 public class BranchSearchInterfaceTest extends BranchTest {
+    private final OkHttpClient mClient = URLConnectionTask.sClient;
+    private final BranchServiceEnabledCache mServiceEnabledCache
+            = BranchServiceEnabledCache.sInstance;
 
     @Before
     public void setUp() throws Throwable {
@@ -34,6 +60,15 @@ public class BranchSearchInterfaceTest extends BranchTest {
         }
         // Spy the raw handler.
         BranchSearchInterface.sRawHandler = Mockito.spy(BranchSearchInterface.sRawHandler);
+        // Always go to the network for service enabled results.
+        BranchServiceEnabledCache.sInstance = new BranchServiceEnabledCache(0);
+    }
+
+    @After
+    public void tearDown() {
+        URLConnectionTask.sClient = mClient;
+        BranchServiceEnabledCache.sInstance = mServiceEnabledCache;
+        super.tearDown();
     }
 
     @Test
@@ -46,13 +81,12 @@ public class BranchSearchInterfaceTest extends BranchTest {
             public Object answer(InvocationOnMock invocation) throws Throwable {
                 IURLConnectionEvents events = invocation.getArgument(2);
                 String response = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
-                JSONObject object = new JSONObject(response);
-                events.onResult(object);
+                deliverResponse(events, response);
                 return null;
             }
         }).when(searchHandler).executePost(
                 Mockito.anyString(),
-                Mockito.any(JSONObject.class),
+                Mockito.any(BranchRequestPayload.class),
                 Mockito.any(IURLConnectionEvents.class));
         BranchSearchRequest request = BranchSearchRequest.Create("food");
 
@@ -75,6 +109,50 @@ public class BranchSearchInterfaceTest extends BranchTest {
         latch.await(5, TimeUnit.SECONDS);
     }
 
+    @Test
+    public void testSearch_cached() throws Throwable {
+        // When search is executed, return the success_mex_food.json JSON.
+        URLConnectionNetworkHandler searchHandler
+                = BranchSearch.getInstance().getNetworkHandler(BranchSearch.Channel.SEARCH);
+        Mockito.doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                IURLConnectionEvents events = invocation.getArgument(2);
+                String response = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
+                deliverResponse(events, response);
+                return null;
+            }
+        }).when(searchHandler).executePost(
+                Mockito.anyString(),
+                Mockito.any(BranchRequestPayload.class),
+                Mockito.any(IURLConnectionEvents.class));
+
+        // Perform the same request twice. The second one should not reach the network.
+        final CountDownLatch latch = new CountDownLatch(2);
+        BranchConfiguration configuration = BranchSearch.getInstance().getBranchConfiguration();
+        IBranchSearchEvents events = new IBranchSearchEvents() {
+            @Override
+            public void onBranchSearchResult(BranchSearchResult result) {
+                Assert.assertTrue(result.getResults().size() > 0);
+                latch.countDown();
+            }
+
+            @Override
+            public void onBranchSearchError(BranchSearchError error) {
+                throw new RuntimeException("Should not happen.");
+            }
+        };
+        BranchSearchInterface.Search(BranchSearchRequest.Create("food"), configuration, events);
+        BranchSearchInterface.Search(BranchSearchRequest.Create("food"), configuration, events);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        Mockito.verify(searchHandler, Mockito.times(1)).executePost(
+                Mockito.anyString(),
+                Mockito.any(BranchRequestPayload.class),
+                Mockito.any(IURLConnectionEvents.class));
+        Assert.assertEquals(1, BranchSearch.getInstance().getSearchCache().getHitCount());
+    }
+
     @Test
     public void testSearch_triggersServiceEnabled() throws Throwable {
         // Prepare the search response. We want it to return UNAUTHORIZED_ERR so that
@@ -90,7 +168,7 @@ public class BranchSearchInterfaceTest extends BranchTest {
             }
         }).when(searchHandler).executePost(
                 Mockito.anyString(),
-                Mockito.any(JSONObject.class),
+                Mockito.any(BranchRequestPayload.class),
                 Mockito.any(IURLConnectionEvents.class));
         BranchSearchRequest request = BranchSearchRequest.Create("pizza");
 
@@ -100,12 +178,13 @@ public class BranchSearchInterfaceTest extends BranchTest {
         Mockito.doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                IURLConnectionEvents events = invocation.getArgument(1);
-                events.onResult(new JSONObject());
+                IURLConnectionEvents events = invocation.getArgument(2);
+                deliverResponse(events, new JSONObject().toString());
                 return null;
             }
         }).when(serviceEnabledHandler).executeGet(
                 Mockito.anyString(),
+                Mockito.any(Headers.class),
                 Mockito.any(IURLConnectionEvents.class)
         );
         doSearchAndWaitForError(request, BranchSearchError.ERR_CODE.UNAUTHORIZED_ERR);
@@ -115,19 +194,331 @@ public class BranchSearchInterfaceTest extends BranchTest {
         Mockito.doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                IURLConnectionEvents events = invocation.getArgument(1);
+                IURLConnectionEvents events = invocation.getArgument(2);
                 JSONObject result = new JSONObject();
                 result.put("disabled", true);
-                events.onResult(result);
+                deliverResponse(events, result.toString());
                 return null;
             }
         }).when(serviceEnabledHandler).executeGet(
                 Mockito.anyString(),
+                Mockito.any(Headers.class),
                 Mockito.any(IURLConnectionEvents.class)
         );
         doSearchAndWaitForError(request, BranchSearchError.ERR_CODE.SERVICE_DISABLED_ERR);
     }
 
+    @Test
+    public void testParsing_offMainThread() throws Throwable {
+        // Answer with canned responses, and watch which threads read the response bodies.
+        // Parsers read the body as they go, so a read on the main thread means parsing there.
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger mainThreadReads = new AtomicInteger();
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        String file = chain.request().url().encodedPath().startsWith("/v1/search")
+                                ? "success_mex_food.json" : "success_queryhint.json";
+                        byte[] bytes = AssetUtils.readJsonFile(getTestContext(), file)
+                                .getBytes("UTF-8");
+                        Source source = new ForwardingSource(
+                                Okio.source(new ByteArrayInputStream(bytes))) {
+                            @Override
+                            public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+                                reads.incrementAndGet();
+                                if (Looper.myLooper() == Looper.getMainLooper()) {
+                                    mainThreadReads.incrementAndGet();
+                                }
+                                return super.read(sink, byteCount);
+                            }
+                        };
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"),
+                                        bytes.length, Okio.buffer(source)))
+                                .build();
+                    }
+                })
+                .build();
+        getTestContext().getSharedPreferences("io.branch.search.queryhint", Context.MODE_PRIVATE)
+                .edit().clear().commit();
+
+        // Use fresh queries so that nothing comes from the caches.
+        final CountDownLatch latch = new CountDownLatch(3);
+        String query = "offmain" + System.nanoTime();
+        BranchConfiguration configuration = BranchSearch.getInstance().getBranchConfiguration();
+        BranchSearchInterface.Search(BranchSearchRequest.Create(query), configuration,
+                new IBranchSearchEvents() {
+            @Override
+            public void onBranchSearchResult(BranchSearchResult result) {
+                Assert.assertTrue(result.getResults().size() > 0);
+                latch.countDown();
+            }
+
+            @Override
+            public void onBranchSearchError(BranchSearchError error) {
+                throw new RuntimeException("Should not happen.");
+            }
+        });
+        IBranchQueryResults queryEvents = new IBranchQueryResults() {
+            @Override
+            public void onQueryResult(BranchQueryResult result) {
+                Assert.assertTrue(result.getQueryResults().size() > 0);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(BranchSearchError error) {
+                throw new RuntimeException("Should not happen.");
+            }
+        };
+        BranchSearchInterface.AutoSuggest(BranchSearchRequest.Create(query), configuration, queryEvents);
+        BranchSearchInterface.QueryHint(BranchQueryHintRequest.Create(), configuration, queryEvents);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue(reads.get() > 0);
+        Assert.assertEquals(0, mainThreadReads.get());
+    }
+
+    /**
+     * Installs a client that answers search requests with success_mex_food.json, after the
+     * given delay.
+     */
+    private void installSlowClient(final long delayMillis) throws Throwable {
+        final String response = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        try {
+                            Thread.sleep(delayMillis);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"),
+                                        response))
+                                .build();
+                    }
+                })
+                .build();
+    }
+
+    @NonNull
+    private static BranchBatchSearchResult doSearchBatch(
+            @NonNull List<BranchSearchRequest> requests) throws Throwable {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final BranchBatchSearchResult[] batchResult = new BranchBatchSearchResult[1];
+        BranchConfiguration configuration = BranchSearch.getInstance().getBranchConfiguration();
+        Assert.assertTrue(BranchSearchInterface.SearchBatch(requests, configuration,
+                new IBranchBatchSearchEvents() {
+                    @Override
+                    public void onBranchBatchSearchResult(@NonNull BranchBatchSearchResult result) {
+                        batchResult[0] = result;
+                        latch.countDown();
+                    }
+                }));
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return batchResult[0];
+    }
+
+    @NonNull
+    private static List<BranchSearchRequest> createRequests(@NonNull String prefix, int count) {
+        List<BranchSearchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(BranchSearchRequest.Create(prefix + System.nanoTime() + "_" + i));
+        }
+        return requests;
+    }
+
+    @Test
+    public void testSearchBatch() throws Throwable {
+        installSlowClient(50);
+        BranchConfiguration configuration = BranchSearch.getInstance().getBranchConfiguration();
+
+        // A query sent meanwhile does not cancel the batch, nor the other way around.
+        final CountDownLatch latch = new CountDownLatch(1);
+        BranchSearchInterface.Search(createRequests("single", 1).get(0), configuration,
+                new IBranchSearchEvents() {
+                    @Override
+                    public void onBranchSearchResult(BranchSearchResult result) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onBranchSearchError(BranchSearchError error) {
+                        throw new RuntimeException("Should not happen.");
+                    }
+                });
+        List<BranchSearchRequest> requests = createRequests("batch", 4);
+        BranchBatchSearchResult result = doSearchBatch(requests);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(requests.size(), result.size());
+        for (int i = 0; i < result.size(); i++) {
+            Assert.assertNull(result.getError(i));
+            Assert.assertNotNull(result.getResult(i));
+            Assert.assertSame(requests.get(i), result.getRequest(i));
+            Assert.assertSame(requests.get(i), result.getResult(i).getBranchSearchRequest());
+        }
+
+        // Results were cached: the same batch does not go to the network again.
+        int sent = BranchSearch.getInstance().getSentRequestCount(BranchSearch.Channel.SEARCH);
+        result = doSearchBatch(requests);
+        Assert.assertNotNull(result.getResult(0));
+        Assert.assertEquals(sent,
+                BranchSearch.getInstance().getSentRequestCount(BranchSearch.Channel.SEARCH));
+
+        // An empty batch is answered right away.
+        Assert.assertEquals(0, doSearchBatch(new ArrayList<BranchSearchRequest>()).size());
+    }
+
+    @Test
+    public void testSearchBatchBenchmark() throws Throwable {
+        final int count = 4;
+        final long delay = 200;
+        installSlowClient(delay);
+        BranchConfiguration configuration = BranchSearch.getInstance().getBranchConfiguration();
+
+        long start = SystemClock.elapsedRealtime();
+        for (BranchSearchRequest request : createRequests("sequential", count)) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            BranchSearchInterface.Search(request, configuration, new IBranchSearchEvents() {
+                @Override
+                public void onBranchSearchResult(BranchSearchResult result) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void onBranchSearchError(BranchSearchError error) {
+                    throw new RuntimeException("Should not happen.");
+                }
+            });
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        long sequential = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        doSearchBatch(createRequests("parallel", count));
+        long batch = SystemClock.elapsedRealtime() - start;
+        Log.w("Branch::BatchTest", "[batch] " + count + " sequential ms:" + sequential
+                + " batch ms:" + batch);
+
+        Assert.assertTrue(sequential >= count * delay);
+        Assert.assertTrue(batch < 2 * delay);
+    }
+
+    @Test
+    public void testAutoSuggestPrefetch() throws Throwable {
+        // Suggest three fresh queries, and count the search requests.
+        final String nonce = String.valueOf(System.nanoTime());
+        final String searchResponse
+                = AssetUtils.readJsonFile(getTestContext(), "success_mex_food.json");
+        final AtomicInteger searches = new AtomicInteger();
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        String body;
+                        if (chain.request().url().encodedPath().startsWith("/v1/search")) {
+                            searches.incrementAndGet();
+                            body = searchResponse;
+                        } else {
+                            body = "{\"results\":[\"pizza" + nonce + "\",\"pasta" + nonce
+                                    + "\",\"pho" + nonce + "\"]}";
+                        }
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), body))
+                                .build();
+                    }
+                })
+                .build();
+        BranchSearch search = BranchSearch.getInstance();
+        BranchConfiguration configuration = search.getBranchConfiguration();
+        configuration.setAutoSuggestPrefetch(2, BranchConfiguration.DEFAULT_PREFETCH_BUDGET_BYTES);
+        // Don't depend on the network of the device.
+        search.prefetcher = new BranchSearchPrefetcher(null);
+
+        // A host with its own limits, which the tapped search shares.
+        final CountDownLatch latch = new CountDownLatch(1);
+        BranchSearchInterface.AutoSuggest(BranchSearchRequest.Create("p" + nonce)
+                        .setMaxAppResults(100)
+                        .setMaxContentPerAppResults(200)
+                        .disableQueryModification(), configuration,
+                new IBranchQueryResults() {
+                    @Override
+                    public void onQueryResult(BranchQueryResult result) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(BranchSearchError error) {
+                        throw new RuntimeException("Should not happen.");
+                    }
+                });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && search.getPrefetcher().getPrefetchCount() < 2; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(2, search.getPrefetcher().getPrefetchCount());
+        Assert.assertEquals(2, searches.get());
+
+        // Tapping the first suggestion is answered from memory.
+        final CountDownLatch tapLatch = new CountDownLatch(1);
+        BranchSearchRequest tap = BranchSearchRequest.Create("pizza" + nonce)
+                .setMaxAppResults(100)
+                .setMaxContentPerAppResults(200)
+                .disableQueryModification()
+                .setQuerySource(BranchQuerySource.AUTOSUGGEST_RESULTS);
+        BranchSearchInterface.Search(tap, configuration, new IBranchSearchEvents() {
+            @Override
+            public void onBranchSearchResult(BranchSearchResult result) {
+                tapLatch.countDown();
+            }
+
+            @Override
+            public void onBranchSearchError(BranchSearchError error) {
+                throw new RuntimeException("Should not happen.");
+            }
+        });
+        Assert.assertTrue(tapLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, searches.get());
+
+        BranchMetricsSnapshot snapshot = search.getMetricsSnapshot();
+        Assert.assertEquals(2, snapshot.getPrefetchCount());
+        Assert.assertEquals(1, snapshot.getPrefetchHitCount());
+        Assert.assertTrue(snapshot.getPrefetchWastedBytes() > 0);
+        Assert.assertTrue(snapshot.getPrefetchWastedBytes() < searchResponse.length() * 2);
+        configuration.setAutoSuggestPrefetch(0, BranchConfiguration.DEFAULT_PREFETCH_BUDGET_BYTES);
+    }
+
+    /**
+     * Delivers a successful response the way URLConnectionTask does: events that can parse
+     * the response stream receive the parsed result.
+     */
+    private static void deliverResponse(@NonNull IURLConnectionEvents events,
+                                        @NonNull String response) throws Throwable {
+        if (events instanceof IURLConnectionParser) {
+            JsonReader reader = new JsonReader(new StringReader(response));
+            events.onResult(new BranchParsedResponse(((IURLConnectionParser) events).parse(reader),
+                    Headers.of()));
+        } else {
+            events.onResult(new JSONObject(response));
+        }
+    }
+
     private void doSearchAndWaitForError(
             @NonNull BranchSearchRequest request,
             @NonNull final BranchSearchError.ERR_CODE expected) throws Throwable {
@@ -35,7 +35,7 @@ public class BranchSearchRequestTest {
         config.setCountryCode("ZZ");
         config.setGoogleAdID("XYZ");
 
-        JSONObject jsonIn = BranchSearchInterface.createPayload(requestIn, config);
+        JSONObject jsonIn = BranchSearchInterface.createPayload(requestIn, config).toJson();
         Log.d("Branch", "SearchRequest::testRequestCreation(): " + jsonIn.toString());
 
         Assert.assertEquals(100,
@@ -60,7 +60,7 @@ public class BranchSearchRequestTest {
     @Test
     public void testHasDeviceInfo() throws Throwable {
         BranchSearchRequest request = BranchSearchRequest.Create("MOD Pizza");
-        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration());
+        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration()).toJson();
 
         Assert.assertNotNull(jsonOut.getString(BranchDeviceInfo.JSONKey.Brand.toString()));
         Assert.assertNotNull(jsonOut.getString(BranchDeviceInfo.JSONKey.Model.toString()));
@@ -73,7 +73,7 @@ public class BranchSearchRequestTest {
         final String MODIFY_KEY = "do_not_modify";
 
         BranchSearchRequest request = BranchSearchRequest.Create("MOD Pizza");
-        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration());
+        JSONObject jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration()).toJson();
 
         // Per Spec:  The field should not be sent if false.
         try {
@@ -87,7 +87,7 @@ public class BranchSearchRequestTest {
 
         // "Disable" query modifications.  The key should now exist.
         request.disableQueryModification();
-        jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration());
+        jsonOut = BranchSearchInterface.createPayload(request, new BranchConfiguration()).toJson();
         Assert.assertTrue(jsonOut.getBoolean(MODIFY_KEY));
     }
 
@@ -98,7 +98,7 @@ public class BranchSearchRequestTest {
         BranchSearchRequest request = BranchSearchRequest.Create("MOD Pizza");
         BranchConfiguration config = new BranchConfiguration();
 
-        JSONObject jsonObject = BranchSearchInterface.createPayload(request, config);
+        JSONObject jsonObject = BranchSearchInterface.createPayload(request, config).toJson();
 
         String localeString = jsonObject.optString(BranchDeviceInfo.JSONKey.Locale.toString());
         Assert.assertFalse(TextUtils.isEmpty(localeString));
@@ -106,7 +106,7 @@ public class BranchSearchRequestTest {
 
         config.setLocale(new Locale("xx_YY"));
 
-        jsonObject = BranchSearchInterface.createPayload(request, config);
+        jsonObject = BranchSearchInterface.createPayload(request, config).toJson();
         Assert.assertEquals(testLocale.toLowerCase(), jsonObject.optString(BranchDeviceInfo.JSONKey.Locale.toString().toLowerCase()));
     }
 }
@@ -6,12 +6,15 @@ import android.support.test.runner.AndroidJUnit4;
 
 import junit.framework.Assert;
 
+import android.util.JsonReader;
+
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.StringReader;
 import java.util.List;
 
 import io.branch.search.util.AssetUtils;
@@ -144,6 +147,57 @@ public class BranchSearchResultTest {
         Assert.assertEquals(error.getErrorCode(), BranchSearchError.ERR_CODE.BAD_REQUEST_ERR);
     }
 
+    @Test
+    public void testStreamingParser() throws Throwable {
+        String[] files = { "success_mex_food.json", "success_empty1.json",
+                "success_empty2.json", "success_empty3.json", "success_null_everywhere.json" };
+        for (String file : files) {
+            String response = AssetUtils.readJsonFile(mContext, file);
+            BranchSearchRequest request = BranchSearchRequest.Create("Mexican");
+            BranchSearchResult expected = BranchResponseParser.parse(request, new JSONObject(response));
+            BranchSearchResult actual = BranchResponseParser.parse(request,
+                    new JsonReader(new StringReader(response)));
+            assertSameResult(file, expected, actual);
+        }
+    }
+
+    private void assertSameResult(String file, BranchSearchResult expected, BranchSearchResult actual) {
+        Assert.assertSame(file, expected.getBranchSearchRequest(), actual.getBranchSearchRequest());
+        Assert.assertEquals(file, expected.getResults().size(), actual.getResults().size());
+        for (int i = 0; i < expected.getResults().size(); i++) {
+            BranchAppResult expectedApp = expected.getResults().get(i);
+            BranchAppResult actualApp = actual.getResults().get(i);
+            Assert.assertEquals(file, expectedApp.getAppName(), actualApp.getAppName());
+            Assert.assertEquals(file, expectedApp.getPackageName(), actualApp.getPackageName());
+            Assert.assertEquals(file, expectedApp.getAppIconUrl(), actualApp.getAppIconUrl());
+            Assert.assertEquals(file, expectedApp.getRankingHint(), actualApp.getRankingHint());
+            Assert.assertEquals(file, expectedApp.getScore(), actualApp.getScore());
+            Assert.assertEquals(file, expectedApp.getDeepLinks().size(), actualApp.getDeepLinks().size());
+            for (int j = 0; j < expectedApp.getDeepLinks().size(); j++) {
+                assertSameLink(file, expectedApp.getDeepLinks().get(j), actualApp.getDeepLinks().get(j));
+            }
+        }
+    }
+
+    private void assertSameLink(String file, BranchLinkResult expected, BranchLinkResult actual) {
+        Assert.assertEquals(file, expected.getEntityID(), actual.getEntityID());
+        Assert.assertEquals(file, expected.getName(), actual.getName());
+        Assert.assertEquals(file, expected.getDescription(), actual.getDescription());
+        Assert.assertEquals(file, expected.getImageUrl(), actual.getImageUrl());
+        Assert.assertEquals(file, expected.getAppIconUrl(), actual.getAppIconUrl());
+        Assert.assertEquals(file, expected.getType(), actual.getType());
+        Assert.assertEquals(file, expected.getScore(), actual.getScore());
+        Assert.assertEquals(file, String.valueOf(expected.getMetadata()),
+                String.valueOf(actual.getMetadata()));
+        Assert.assertEquals(file, expected.getRankingHint(), actual.getRankingHint());
+        Assert.assertEquals(file, expected.getRoutingMode(), actual.getRoutingMode());
+        Assert.assertEquals(file, expected.getUriScheme(), actual.getUriScheme());
+        Assert.assertEquals(file, expected.getWebLink(), actual.getWebLink());
+        Assert.assertEquals(file, expected.getDestinationPackageName(),
+                actual.getDestinationPackageName());
+        Assert.assertEquals(file, expected.getClickTrackingUrl(), actual.getClickTrackingUrl());
+    }
+
     private void testAppResult(BranchAppResult result) {
         Assert.assertNotNull(result.getAppIconUrl());
         Assert.assertNotNull(result.getAppName());
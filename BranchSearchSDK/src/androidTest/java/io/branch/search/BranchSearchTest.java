@@ -116,4 +116,31 @@ public class BranchSearchTest extends BranchTest {
         });
         Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
     }
+
+    @Test
+    public void testPrewarm_reusesConnection() throws Throwable {
+        // Initialization prewarms a connection. Wait for it to be back in the pool.
+        URLConnectionTask.sClient.connectionPool().evictAll();
+        initBranch();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (URLConnectionTask.sClient.connectionPool().idleConnectionCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        int reused = BranchSearch.getInstance().getReusedConnectionCount();
+        int opened = BranchSearch.getInstance().getNewConnectionCount();
+        Assert.assertTrue(opened > 0);
+
+        // The next request to the same host should reuse it.
+        final CountDownLatch latch = new CountDownLatch(1);
+        BranchSearch.isServiceEnabled(getTestContext(), new IBranchServiceEnabledEvents() {
+            @Override
+            public void onBranchServiceEnabledResult(@NonNull BranchServiceEnabledResult result) {
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(reused + 1, BranchSearch.getInstance().getReusedConnectionCount());
+        Assert.assertEquals(opened, BranchSearch.getInstance().getNewConnectionCount());
+    }
 }
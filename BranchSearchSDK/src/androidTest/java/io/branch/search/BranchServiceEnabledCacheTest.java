@@ -0,0 +1,124 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * BranchServiceEnabledCache class tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BranchServiceEnabledCacheTest {
+    private final OkHttpClient mClient = URLConnectionTask.sClient;
+    private final BranchServiceEnabledCache mCache = BranchServiceEnabledCache.sInstance;
+
+    // The If-None-Match header of each request, or an empty string.
+    private final List<String> mRequests = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        URLConnectionTask.sClient = mClient;
+        BranchServiceEnabledCache.sInstance = mCache;
+    }
+
+    /**
+     * Installs a client that says the service is disabled, with an ETag, and answers
+     * 304 Not Modified to requests that have the same ETag.
+     */
+    private void installClient() {
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        String etag = chain.request().header("If-None-Match");
+                        mRequests.add(etag == null ? "" : etag);
+                        boolean notModified = "\"v1\"".equals(etag);
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(notModified ? 304 : 200)
+                                .message(notModified ? "Not Modified" : "OK")
+                                .header("ETag", "\"v1\"")
+                                .body(ResponseBody.create(MediaType.parse("application/json"),
+                                        notModified ? "" : "{\"disabled\":true}"))
+                                .build();
+                    }
+                })
+                .build();
+    }
+
+    private static boolean isServiceEnabled(@NonNull String key) throws Throwable {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] enabled = new boolean[1];
+        BranchSearchInterface.ServiceEnabled(key, new IBranchServiceEnabledEvents() {
+            @Override
+            public void onBranchServiceEnabledResult(@NonNull BranchServiceEnabledResult result) {
+                enabled[0] = result.isEnabled();
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return enabled[0];
+    }
+
+    @Test
+    public void testFreshResult() throws Throwable {
+        installClient();
+        BranchServiceEnabledCache.sInstance = new BranchServiceEnabledCache(60 * 1000L);
+        String key = "key_live_fresh" + System.nanoTime();
+
+        Assert.assertFalse(isServiceEnabled(key));
+        Assert.assertFalse(isServiceEnabled(key));
+        Assert.assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void testRevalidation() throws Throwable {
+        installClient();
+        BranchServiceEnabledCache.sInstance = new BranchServiceEnabledCache(0);
+        String key = "key_live_stale" + System.nanoTime();
+
+        Assert.assertFalse(isServiceEnabled(key));
+        Assert.assertFalse(isServiceEnabled(key));
+        Assert.assertEquals(2, mRequests.size());
+        Assert.assertEquals("", mRequests.get(0));
+        Assert.assertEquals("\"v1\"", mRequests.get(1));
+    }
+
+    @Test
+    public void testPersistence() {
+        String key = "key_live_disk" + System.nanoTime();
+        BranchServiceEnabledCache cache = new BranchServiceEnabledCache(60 * 1000L);
+        cache.attach(InstrumentationRegistry.getTargetContext());
+        cache.put(key, false, Headers.of("ETag", "\"v2\""));
+
+        // A new session reads it from disk.
+        cache = new BranchServiceEnabledCache(60 * 1000L);
+        cache.attach(InstrumentationRegistry.getTargetContext());
+        BranchServiceEnabledCache.Entry entry = cache.get(key);
+        Assert.assertNotNull(entry);
+        Assert.assertFalse(entry.isEnabled);
+        Assert.assertTrue(cache.isFresh(entry));
+        Assert.assertEquals("\"v2\"",
+                BranchServiceEnabledCache.getValidationHeaders(entry).get("If-None-Match"));
+    }
+}
@@ -1,6 +1,7 @@
 package io.branch.search;
 
 import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
 
 import junit.framework.Assert;
 
@@ -8,6 +9,7 @@ import org.json.JSONObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.StringReader;
 import java.util.List;
 
 import io.branch.search.util.AssetUtils;
@@ -64,4 +66,18 @@ public class BranchServiceEnabledResultTest extends BranchTest {
         Assert.assertNotNull(result);
         Assert.assertFalse(result.isEnabled());
     }
+
+    @Test
+    public void testFromJsonReader() throws Throwable {
+        String[] files = { "serviceenabled_nokey.json", "serviceenabled_key_enabled.json",
+                "serviceenabled_key_disabled.json" };
+        for (String file : files) {
+            String response = AssetUtils.readJsonFile(getTestContext(), file);
+            BranchServiceEnabledResult expected
+                    = BranchServiceEnabledResult.createFromJson(new JSONObject(response));
+            BranchServiceEnabledResult actual = BranchServiceEnabledResult.createFromJsonReader(
+                    new JsonReader(new StringReader(response)));
+            Assert.assertEquals(file, expected.isEnabled(), actual.isEnabled());
+        }
+    }
 }
@@ -2,6 +2,7 @@ package io.branch.search;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Debug;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.rule.ActivityTestRule;
 import android.support.test.runner.AndroidJUnit4;
@@ -88,6 +89,15 @@ public class BranchTest {
         });
     }
 
+    /**
+     * Returns the number of bytes allocated so far by the runtime, in the whole process.
+     * Benchmarks should measure many rounds, so that other threads don't matter much.
+     * Requires API 23.
+     */
+    static long getAllocatedBytes() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
     Context getTestContext() {
         return mContext;
     }
@@ -0,0 +1,581 @@
+package io.branch.search;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * URLConnectionNetworkHandler tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class URLConnectionNetworkHandlerTest {
+    private final OkHttpClient mClient = URLConnectionTask.sClient;
+
+    @After
+    public void tearDown() {
+        URLConnectionTask.sClient = mClient;
+    }
+
+    /**
+     * Installs a client that answers with an empty JSON object, after sleeping for the given
+     * amount of milliseconds for the n-th request.
+     */
+    private void installClient(final int slowRequest, final long sleepMillis) {
+        final AtomicInteger requests = new AtomicInteger();
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        if (requests.getAndIncrement() == slowRequest) {
+                            try {
+                                Thread.sleep(sleepMillis);
+                            } catch (InterruptedException ignore) {}
+                        }
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                                .build();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Installs a client that answers with a server error to the given number of requests,
+     * or to all of them if negative, and with an empty JSON object after that.
+     */
+    private void installFailingClient(final int failures) {
+        final AtomicInteger requests = new AtomicInteger();
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        boolean fail = failures < 0 || requests.getAndIncrement() < failures;
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(fail ? 503 : 200)
+                                .message(fail ? "Service Unavailable" : "OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                                .build();
+                    }
+                })
+                .build();
+    }
+
+    private static BranchRequestPayload createPayload() {
+        return BranchSearchInterface.createPayload(BranchSearchRequest.Create("pizza"),
+                new BranchConfiguration());
+    }
+
+    private JSONObject executePostAndWait(URLConnectionNetworkHandler handler) throws Throwable {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final JSONObject[] result = new JSONObject[1];
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                result[0] = response;
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    @Test
+    public void testCoalescing() throws Throwable {
+        final int REQUESTS = 5;
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setCoalescing(300, false);
+
+        final CountDownLatch latch = new CountDownLatch(REQUESTS);
+        final AtomicInteger canceled = new AtomicInteger();
+        IURLConnectionEvents events = new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                if (response instanceof BranchSearchError && ((BranchSearchError) response)
+                        .getErrorCode() == BranchSearchError.ERR_CODE.REQUEST_CANCELED) {
+                    canceled.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < REQUESTS; i++) {
+            handler.executePost("https://fakeurl.fakeurl", createPayload(), events);
+            Thread.sleep(20);
+        }
+
+        // Every request gets a callback, but only the last one goes out.
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(REQUESTS - 1, canceled.get());
+        Assert.assertEquals(REQUESTS - 1, handler.getCoalescedCount());
+        Assert.assertEquals(1, handler.getSentCount());
+    }
+
+    @Test
+    public void testCoalescing_cancelPost() throws Throwable {
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setCoalescing(300, false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                latch.countDown();
+            }
+        });
+
+        // A request answered from a cache cancels the pending one, but did not replace it.
+        handler.cancelPost();
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(0, handler.getCoalescedCount());
+        Assert.assertEquals(1, handler.getMetrics().cancelCount.get());
+    }
+
+    @Test
+    public void testCoalescing_maxWait() throws Throwable {
+        installClient(-1, 0);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setCoalescing(300, false);
+
+        // Type steadily, faster than the window, for about four windows.
+        IURLConnectionEvents events = new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {}
+        };
+        for (int i = 0; i < 12; i++) {
+            handler.executePost("https://fakeurl.fakeurl", createPayload(), events);
+            Thread.sleep(100);
+        }
+
+        // Requests went out while typing, not only after the pause.
+        Assert.assertTrue(handler.getSentCount() >= 2);
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.executePost("https://fakeurl.fakeurl", createPayload(),
+                new IURLConnectionEvents() {
+                    @Override
+                    public void onResult(@NonNull JSONObject response) {
+                        latch.countDown();
+                    }
+                });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNoCoalescing() throws Throwable {
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        final CountDownLatch latch = new CountDownLatch(2);
+        IURLConnectionEvents events = new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                latch.countDown();
+            }
+        };
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), events);
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), events);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, handler.getCoalescedCount());
+        Assert.assertEquals(2, handler.getSentCount());
+    }
+
+    @Test
+    public void testHedging() throws Throwable {
+        // The 11th request is slow. Requests before that give us enough RTT samples.
+        final int FAST_REQUESTS = 10;
+        final long SLOW_MILLIS = 5000;
+        installClient(FAST_REQUESTS, SLOW_MILLIS);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setHedging(0.9F, 0.5F);
+        for (int i = 0; i < FAST_REQUESTS; i++) {
+            executePostAndWait(handler);
+        }
+        Assert.assertEquals(0, handler.getHedgeCount());
+
+        // The slow request should be answered by its hedge.
+        long start = System.currentTimeMillis();
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertFalse(result instanceof BranchSearchError);
+        Assert.assertTrue(System.currentTimeMillis() - start < SLOW_MILLIS);
+        Assert.assertEquals(1, handler.getHedgeCount());
+        Assert.assertEquals(1, handler.getHedgeWinCount());
+
+        // The primary lost the race, but was not canceled by the caller.
+        Assert.assertEquals(0, handler.getMetrics().cancelCount.get());
+    }
+
+    @Test
+    public void testHedging_primaryError() throws Throwable {
+        // The 11th request fails after a while, and its hedge succeeds after that.
+        final int FAST_REQUESTS = 10;
+        final AtomicInteger requests = new AtomicInteger();
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        int request = requests.getAndIncrement();
+                        boolean fail = request == FAST_REQUESTS;
+                        try {
+                            if (fail) Thread.sleep(300);
+                            if (request == FAST_REQUESTS + 1) Thread.sleep(1000);
+                        } catch (InterruptedException ignore) {}
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(fail ? 503 : 200)
+                                .message(fail ? "Service Unavailable" : "OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                                .build();
+                    }
+                })
+                .build();
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setHedging(0.9F, 0.5F);
+        for (int i = 0; i < FAST_REQUESTS; i++) {
+            executePostAndWait(handler);
+        }
+
+        // The error of the primary waits for the hedge.
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertFalse(result instanceof BranchSearchError);
+        Assert.assertEquals(1, handler.getHedgeCount());
+        Assert.assertEquals(1, handler.getHedgeWinCount());
+    }
+
+    @Test
+    public void testCallbackExecutor() throws Throwable {
+        installClient(-1, 0);
+        final AtomicInteger executed = new AtomicInteger();
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                executed.incrementAndGet();
+                command.run();
+            }
+        });
+
+        // The result should come straight from the network thread.
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] isMainThread = new boolean[1];
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                isMainThread[0] = Looper.myLooper() == Looper.getMainLooper();
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(isMainThread[0]);
+        Assert.assertEquals(1, executed.get());
+    }
+
+    @Test
+    public void testMetrics() throws Throwable {
+        installClient(-1, 0);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        for (int i = 0; i < 3; i++) {
+            executePostAndWait(handler);
+        }
+
+        BranchChannelMetrics metrics = handler.getMetrics();
+        Assert.assertEquals(3, metrics.resultCount.get());
+        Assert.assertEquals(0, metrics.errorCount.get());
+        Assert.assertEquals(3, BranchLatencyHistogram.getCount(metrics.endToEnd.snapshot()));
+        Assert.assertEquals(3, BranchLatencyHistogram.getCount(metrics.queueWait.snapshot()));
+    }
+
+    @Test
+    public void testTimeout() throws Throwable {
+        installClient(0, 2000);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setTimeout(300, false);
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertTrue(result instanceof BranchSearchError);
+        Assert.assertEquals(BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR,
+                ((BranchSearchError) result).getErrorCode());
+    }
+
+    @Test
+    public void testAdaptiveTimeout() {
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setTimeout(3000, true);
+
+        // Not enough samples yet.
+        Assert.assertEquals(3000, handler.getTimeout());
+
+        // A fast network, but never below the minimum.
+        for (int i = 0; i < 10; i++) handler.getMetrics().addRecentRtt(100);
+        Assert.assertEquals(1000, handler.getTimeout());
+
+        // A slow network, but never above the maximum.
+        for (int i = 0; i < 32; i++) handler.getMetrics().addRecentRtt(2000);
+        Assert.assertEquals(3000, handler.getTimeout());
+
+        handler.setTimeout(3000, false);
+        for (int i = 0; i < 32; i++) handler.getMetrics().addRecentRtt(100);
+        Assert.assertEquals(3000, handler.getTimeout());
+    }
+
+    @Test
+    public void testAdaptiveTimeout_recovers() throws Throwable {
+        final AtomicLong delay = new AtomicLong(0);
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        try {
+                            Thread.sleep(delay.get());
+                        } catch (InterruptedException ignore) {}
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                                .build();
+                    }
+                })
+                .build();
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setTimeout(5000, true);
+
+        // Learn on a fast network.
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse(executePostAndWait(handler) instanceof BranchSearchError);
+        }
+        Assert.assertEquals(1000, handler.getTimeout());
+
+        // The network becomes slower than the timeout: the first requests time out, and the
+        // timeout grows so that the next ones get through.
+        delay.set(1500);
+        int timeouts = 0;
+        while (handler.getTimeout() < 1500 && timeouts < 5) {
+            JSONObject result = executePostAndWait(handler);
+            Assert.assertEquals(BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR,
+                    ((BranchSearchError) result).getErrorCode());
+            timeouts++;
+        }
+        Assert.assertTrue(timeouts <= 2);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(executePostAndWait(handler) instanceof BranchSearchError);
+        }
+    }
+
+    /**
+     * Posts a request to a client that answers with the given code and an empty JSON object,
+     * and returns what a parser callback received.
+     */
+    private JSONObject executeParsedPost(final int code) throws Throwable {
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(code)
+                                .message("Whatever")
+                                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                                .build();
+                    }
+                })
+                .build();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final JSONObject[] result = new JSONObject[1];
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), new IURLConnectionParser() {
+            @NonNull
+            @Override
+            public Object parse(@NonNull JsonReader reader) throws IOException {
+                reader.skipValue();
+                return "parsed";
+            }
+
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                result[0] = response;
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    @Test
+    public void testParser_successCodes() throws Throwable {
+        // Any success is parsed.
+        JSONObject result = executeParsedPost(203);
+        Assert.assertTrue(result instanceof BranchParsedResponse);
+        Assert.assertEquals("parsed", ((BranchParsedResponse) result).getResult());
+
+        // Anything else that is not an error still turns into one, so that parser callbacks
+        // only ever get parsed responses or errors.
+        result = executeParsedPost(302);
+        Assert.assertTrue(result instanceof BranchSearchError);
+    }
+
+    @Test
+    public void testRetry() throws Throwable {
+        installFailingClient(1);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setRetries(1);
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertFalse(result instanceof BranchSearchError);
+        Assert.assertEquals(1, handler.getMetrics().retryCount.get());
+
+        // Retries are disabled by default.
+        installFailingClient(1);
+        handler = URLConnectionNetworkHandler.initialize();
+        result = executePostAndWait(handler);
+        Assert.assertEquals(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR,
+                ((BranchSearchError) result).getErrorCode());
+        Assert.assertEquals(0, handler.getMetrics().retryCount.get());
+    }
+
+    @Test
+    public void testRetry_busyMainThread() throws Throwable {
+        installFailingClient(1);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setRetries(1);
+        handler.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                command.run();
+            }
+        });
+
+        // Retries should not wait for the main thread.
+        final CountDownLatch release = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) { }
+            }
+        });
+        try {
+            JSONObject result = executePostAndWait(handler);
+            Assert.assertFalse(result instanceof BranchSearchError);
+            Assert.assertEquals(1, handler.getMetrics().retryCount.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testRetryBudget() throws Throwable {
+        // The server is down, so the bucket empties and retries stop.
+        installFailingClient(-1);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setRetries(3);
+        for (int i = 0; i < 20; i++) {
+            JSONObject result = executePostAndWait(handler);
+            Assert.assertTrue(result instanceof BranchSearchError);
+        }
+        Assert.assertEquals(10, handler.getMetrics().retryCount.get());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Throwable {
+        installFailingClient(-1);
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setCircuitBreaker(0.5F, 300);
+        for (int i = 0; i < 10; i++) {
+            JSONObject result = executePostAndWait(handler);
+            Assert.assertEquals(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR,
+                    ((BranchSearchError) result).getErrorCode());
+        }
+        Assert.assertEquals(BranchMetricsSnapshot.CircuitState.OPEN,
+                handler.getCircuitBreaker().getState());
+
+        // Fail fast without sending anything.
+        int sent = handler.getSentCount();
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertEquals(BranchSearchError.ERR_CODE.CIRCUIT_OPEN_ERR,
+                ((BranchSearchError) result).getErrorCode());
+        Assert.assertEquals(sent, handler.getSentCount());
+        Assert.assertEquals(1, handler.getCircuitBreaker().getRejectedCount());
+
+        // The service is back: the probe goes through and closes the circuit.
+        Thread.sleep(400);
+        Assert.assertEquals(BranchMetricsSnapshot.CircuitState.HALF_OPEN,
+                handler.getCircuitBreaker().getState());
+        installFailingClient(0);
+        result = executePostAndWait(handler);
+        Assert.assertFalse(result instanceof BranchSearchError);
+        Assert.assertEquals(BranchMetricsSnapshot.CircuitState.CLOSED,
+                handler.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testFakeTransport() throws Throwable {
+        BranchFakeTransport transport = new BranchFakeTransport(1)
+                .setResponse("/", "{\"fake\":true}");
+        URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+        handler.setTransport(transport);
+
+        // Canned payload.
+        JSONObject result = executePostAndWait(handler);
+        Assert.assertTrue(result.optBoolean("fake"));
+        Assert.assertEquals(1, transport.getRequestCount());
+
+        // Server errors and connection failures.
+        transport.setErrorRates(1F, 0F);
+        result = executePostAndWait(handler);
+        Assert.assertEquals(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR,
+                ((BranchSearchError) result).getErrorCode());
+        transport.setErrorRates(0F, 1F);
+        result = executePostAndWait(handler);
+        Assert.assertTrue(result instanceof BranchSearchError);
+
+        // A slow request is canceled by the next one, and stops waiting.
+        transport.setErrorRates(0F, 0F).setLatency(10000, 0);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final JSONObject[] canceled = new JSONObject[1];
+        handler.executePost("https://fakeurl.fakeurl", createPayload(), new IURLConnectionEvents() {
+            @Override
+            public void onResult(@NonNull JSONObject response) {
+                canceled[0] = response;
+                latch.countDown();
+            }
+        });
+        for (int i = 0; i < 50 && transport.getRequestCount() < 4; i++) {
+            Thread.sleep(20);
+        }
+        transport.setLatency(0, 0);
+        result = executePostAndWait(handler);
+        Assert.assertTrue(result.optBoolean("fake"));
+        Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(BranchSearchError.ERR_CODE.REQUEST_CANCELED,
+                ((BranchSearchError) canceled[0]).getErrorCode());
+        for (int i = 0; i < 50 && transport.getCanceledCount() < 1; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(1, transport.getCanceledCount());
+    }
+}
@@ -1,8 +1,10 @@
 package io.branch.search;
 
-import android.os.AsyncTask;
+import android.support.annotation.NonNull;
 import android.support.test.runner.AndroidJUnit4;
 
+import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -11,6 +13,7 @@ import org.mockito.Mockito;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -21,6 +24,12 @@ import okhttp3.Response;
  */
 @RunWith(AndroidJUnit4.class)
 public class URLConnectionTaskTest {
+    private final OkHttpClient mClient = URLConnectionTask.sClient;
+
+    @After
+    public void tearDown() {
+        URLConnectionTask.sClient = mClient;
+    }
 
     @Test
     public void testCancel_multipleCalls() throws Throwable {
@@ -53,7 +62,7 @@ public class URLConnectionTaskTest {
         // Create task and run.
         URLConnectionTask task = URLConnectionTask.forGet("https://fakeurl.fakeurl",
                 null);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        task.execute();
 
         // Wait for the connection to be created.
         boolean wait = connectionStart.await(10, TimeUnit.SECONDS);
@@ -68,4 +77,45 @@ public class URLConnectionTaskTest {
         task.cancel();
         Assert.assertTrue(task.mCall.isCanceled());
     }
+
+    @Test
+    public void testCancel_deliversOnce() throws Throwable {
+        // Create a client that answers after a while, so that we can cancel in the middle.
+        final CountDownLatch connectionStart = new CountDownLatch(1);
+        URLConnectionTask.sClient = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        connectionStart.countDown();
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException ignore) {}
+                        return chain.proceed(chain.request());
+                    }
+                })
+                .build();
+
+        final AtomicInteger results = new AtomicInteger();
+        final AtomicInteger canceled = new AtomicInteger();
+        URLConnectionTask task = URLConnectionTask.forGet("https://fakeurl.fakeurl",
+                new IURLConnectionEvents() {
+                    @Override
+                    public void onResult(@NonNull JSONObject response) {
+                        results.incrementAndGet();
+                        if (response instanceof BranchSearchError && ((BranchSearchError) response)
+                                .getErrorCode() == BranchSearchError.ERR_CODE.REQUEST_CANCELED) {
+                            canceled.incrementAndGet();
+                        }
+                    }
+                });
+        task.execute();
+        Assert.assertTrue(connectionStart.await(10, TimeUnit.SECONDS));
+
+        // Cancel twice, and give the failing call time to come back.
+        task.cancel();
+        task.cancel();
+        Thread.sleep(1000);
+        Assert.assertEquals(1, results.get());
+        Assert.assertEquals(1, canceled.get());
+    }
 }
@@ -0,0 +1,267 @@
+package io.branch.search;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prefix-aware cache of auto-suggestions.
+ *
+ * Suggestions are stored in a trie keyed by the normalized prefix that was sent to the server.
+ * All entries share the same context: the request limits and flags, the country, the locale and
+ * the rounded location, as in {@link BranchSearchCache}. A request with another context clears
+ * the cache, since suggestions depend on it.
+ *
+ * When a new prefix is requested, the cache answers from the exact same prefix, if it was
+ * requested recently. The server does not tell us whether a list of suggestions is complete,
+ * so the suggestions of a shorter prefix that match the new one are never final: they can
+ * only be delivered as provisional results while the real request runs, see
+ * {@link BranchConfiguration#setAutoSuggestProvisionalResults(boolean)}.
+ *
+ * A typing session starts with a query that neither extends nor shortens the previous one.
+ * Counters are kept for the current session and for the lifetime of the cache.
+ */
+public class BranchAutoSuggestCache {
+
+    private static final int MAX_PREFIXES = 200;
+
+    private final long ttlMillis;
+    private final Node root = new Node();
+    private final LinkedHashMap<String, Entry> entries
+            = new LinkedHashMap<>(16, 0.75F, true);
+    private String context;
+
+    private String lastQuery;
+    private int sessionRequestCount;
+    private int sessionAvoidedCount;
+    // Written in synchronized methods, and read without the lock.
+    private volatile int requestCount;
+    private volatile int avoidedCount;
+
+    private static class Entry {
+        final List<String> results;
+        final long expiresAt;
+
+        Entry(@NonNull List<String> results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Node {
+        final SparseArray<Node> children = new SparseArray<>();
+        Entry entry;
+    }
+
+    /**
+     * The answer to a {@link #lookup(BranchSearchRequest, BranchConfiguration)}.
+     */
+    static class Lookup {
+        final List<String> results;
+
+        // Whether results can be delivered without going to the network.
+        final boolean isFinal;
+
+        Lookup(@NonNull List<String> results, boolean isFinal) {
+            this.results = results;
+            this.isFinal = isFinal;
+        }
+    }
+
+    BranchAutoSuggestCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Looks up suggestions for the given request. This also updates the session counters,
+     * so it should be called exactly once per auto-suggest request.
+     * @param request the auto-suggest request
+     * @param configuration the configuration
+     * @return a lookup, or null if there's nothing useful in this cache.
+     */
+    @Nullable
+    synchronized Lookup lookup(@NonNull BranchSearchRequest request,
+                               @NonNull BranchConfiguration configuration) {
+        String prefix = normalize(request.getQuery());
+        updateSession(prefix);
+        if (ttlMillis <= 0) return null;
+        updateContext(request, configuration);
+
+        long now = SystemClock.elapsedRealtime();
+        Entry exact = null;
+        Entry ancestor = null;
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.entry != null && node.entry.expiresAt >= now) {
+                if (i == prefix.length()) {
+                    exact = node.entry;
+                } else {
+                    ancestor = node.entry;
+                }
+            }
+            if (i == prefix.length()) break;
+            node = node.children.get(prefix.charAt(i));
+        }
+
+        if (exact != null) {
+            entries.get(prefix); // Touch for LRU.
+            onNetworkCallAvoided();
+            return new Lookup(exact.results, true);
+        }
+        if (ancestor != null) {
+            List<String> filtered = filter(ancestor.results, prefix);
+            if (!filtered.isEmpty()) {
+                return new Lookup(filtered, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the suggestions that the server returned for the given request. A late response to
+     * a request from another context is dropped, so that it can't clear the current entries.
+     */
+    synchronized void put(@NonNull BranchSearchRequest request,
+                          @NonNull BranchConfiguration configuration,
+                          @NonNull List<String> results) {
+        if (ttlMillis <= 0) return;
+        String requestContext = BranchSearchCache.createContextKey(request, configuration);
+        if (context == null) {
+            context = requestContext;
+        } else if (!context.equals(requestContext)) {
+            return;
+        }
+        String prefix = normalize(request.getQuery());
+        Entry entry = new Entry(Collections.unmodifiableList(new ArrayList<>(results)),
+                SystemClock.elapsedRealtime() + ttlMillis);
+
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            Node child = node.children.get(prefix.charAt(i));
+            if (child == null) {
+                child = new Node();
+                node.children.put(prefix.charAt(i), child);
+            }
+            node = child;
+        }
+        node.entry = entry;
+        entries.put(prefix, entry);
+
+        // Evict the least recently used prefixes.
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > MAX_PREFIXES && iterator.hasNext()) {
+            String evicted = iterator.next().getKey();
+            iterator.remove();
+            remove(root, evicted, 0);
+        }
+    }
+
+    /**
+     * Removes all the cached suggestions. Counters are not reset.
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        root.entry = null;
+        entries.clear();
+    }
+
+    /**
+     * @return the number of auto-suggest requests in the current typing session.
+     */
+    public synchronized int getSessionRequestCount() {
+        return sessionRequestCount;
+    }
+
+    /**
+     * @return the number of network calls avoided in the current typing session.
+     */
+    public synchronized int getSessionNetworkCallsAvoided() {
+        return sessionAvoidedCount;
+    }
+
+    /**
+     * @return the total number of auto-suggest requests.
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return the total number of network calls avoided.
+     */
+    public int getNetworkCallsAvoided() {
+        return avoidedCount;
+    }
+
+    private void updateSession(@NonNull String prefix) {
+        if (lastQuery == null || !(prefix.startsWith(lastQuery) || lastQuery.startsWith(prefix))) {
+            sessionRequestCount = 0;
+            sessionAvoidedCount = 0;
+        }
+        lastQuery = prefix;
+        sessionRequestCount++;
+        requestCount++;
+    }
+
+    // Clears the cache if the context of the request is not the one of the cached entries.
+    private void updateContext(@NonNull BranchSearchRequest request,
+                               @NonNull BranchConfiguration configuration) {
+        String newContext = BranchSearchCache.createContextKey(request, configuration);
+        if (!newContext.equals(context)) {
+            clear();
+            context = newContext;
+        }
+    }
+
+    private void onNetworkCallAvoided() {
+        sessionAvoidedCount++;
+        avoidedCount++;
+    }
+
+    // Returns true if the node can be pruned from its parent.
+    private static boolean remove(@NonNull Node node, @NonNull String prefix, int index) {
+        if (index == prefix.length()) {
+            node.entry = null;
+        } else {
+            char c = prefix.charAt(index);
+            Node child = node.children.get(c);
+            if (child != null && remove(child, prefix, index + 1)) {
+                node.children.remove(c);
+            }
+        }
+        return node.entry == null && node.children.size() == 0;
+    }
+
+    @NonNull
+    private static String normalize(@Nullable String query) {
+        if (query == null) return "";
+        int start = 0;
+        while (start < query.length() && Character.isWhitespace(query.charAt(start))) start++;
+        return query.substring(start).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the suggestions that match the prefix, either at the start of the suggestion
+     * or at the start of any of its words.
+     */
+    @NonNull
+    private static List<String> filter(@NonNull List<String> results, @NonNull String prefix) {
+        List<String> filtered = new ArrayList<>();
+        for (String result : results) {
+            String suggestion = result.toLowerCase(Locale.ROOT);
+            if (suggestion.startsWith(prefix) || suggestion.contains(" " + prefix)) {
+                filtered.add(result);
+            }
+        }
+        return filtered;
+    }
+}
@@ -0,0 +1,85 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Branch batch search results: for each request of the batch, in order, either a
+ * {@link BranchSearchResult} or a {@link BranchSearchError}.
+ */
+public class BranchBatchSearchResult {
+    private final List<BranchSearchRequest> requests;
+    private final BranchSearchResult[] results;
+    private final BranchSearchError[] errors;
+    private final AtomicInteger remaining;
+
+    BranchBatchSearchResult(@NonNull List<BranchSearchRequest> requests) {
+        this.requests = new ArrayList<>(requests);
+        this.results = new BranchSearchResult[requests.size()];
+        this.errors = new BranchSearchError[requests.size()];
+        this.remaining = new AtomicInteger(requests.size());
+    }
+
+    /**
+     * @return the number of requests in the batch.
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * @param index the index of a request in the batch
+     * @return the request.
+     */
+    @NonNull
+    public BranchSearchRequest getRequest(int index) {
+        return requests.get(index);
+    }
+
+    /**
+     * @param index the index of a request in the batch
+     * @return the result of the request, or null if it failed.
+     */
+    @Nullable
+    public BranchSearchResult getResult(int index) {
+        return results[index];
+    }
+
+    /**
+     * @param index the index of a request in the batch
+     * @return the error of the request, or null if it succeeded.
+     */
+    @Nullable
+    public BranchSearchError getError(int index) {
+        return errors[index];
+    }
+
+    /**
+     * Sets the result of a request.
+     * @return true if this was the last request of the batch to complete.
+     */
+    boolean setResult(int index, @NonNull BranchSearchResult result) {
+        results[index] = result;
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * Sets the error of a request.
+     * @return true if this was the last request of the batch to complete.
+     */
+    boolean setError(int index, @NonNull BranchSearchError error) {
+        errors[index] = error;
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * @return true if the batch has no requests, and so is already complete.
+     */
+    boolean isEmpty() {
+        return requests.isEmpty();
+    }
+}
@@ -0,0 +1,51 @@
+package io.branch.search;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free metrics of the requests sent by a {@link URLConnectionNetworkHandler}.
+ * Everything is recorded with atomic operations, so tasks can record from any thread.
+ * See {@link BranchMetricsSnapshot} for the public, read-only view.
+ */
+class BranchChannelMetrics {
+
+    // From the moment a request is scheduled to the moment its callback runs.
+    final BranchLatencyHistogram endToEnd = new BranchLatencyHistogram();
+
+    // From the moment a request is scheduled to the moment a thread starts running it.
+    final BranchLatencyHistogram queueWait = new BranchLatencyHistogram();
+
+    // Time spent reading and parsing successful response bodies.
+    final BranchLatencyHistogram parse = new BranchLatencyHistogram();
+
+    final AtomicLong resultCount = new AtomicLong();
+    final AtomicLong errorCount = new AtomicLong();
+    final AtomicLong cancelCount = new AtomicLong();
+    final AtomicLong retryCount = new AtomicLong();
+
+    // The last network round trip times in milliseconds, not counting queue wait, used for
+    // adaptive timeouts. Unlike the histograms, these only reflect recent conditions.
+    private static final int RECENT_RTT_SAMPLES = 32;
+    private static final int MIN_RECENT_RTT_SAMPLES = 8;
+    private final long[] recentRtt = new long[RECENT_RTT_SAMPLES];
+    private int recentRttCount;
+
+    synchronized void addRecentRtt(long millis) {
+        recentRtt[recentRttCount % RECENT_RTT_SAMPLES] = millis;
+        recentRttCount++;
+    }
+
+    /**
+     * Returns the given percentile of the recent round trip times.
+     * @param percentile the percentile, between 0 and 1
+     * @return the round trip time in milliseconds, or -1 if there are not enough samples.
+     */
+    synchronized long getRecentRtt(float percentile) {
+        int count = Math.min(recentRttCount, RECENT_RTT_SAMPLES);
+        if (count < MIN_RECENT_RTT_SAMPLES) return -1;
+        long[] sorted = Arrays.copyOf(recentRtt, count);
+        Arrays.sort(sorted);
+        return sorted[(int) (Math.max(0F, Math.min(1F, percentile)) * (count - 1))];
+    }
+}
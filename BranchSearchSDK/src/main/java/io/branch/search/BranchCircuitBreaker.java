@@ -0,0 +1,166 @@
+package io.branch.search;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import io.branch.search.BranchMetricsSnapshot.CircuitState;
+
+/**
+ * A circuit breaker for the requests of a {@link URLConnectionNetworkHandler}.
+ *
+ * While closed, the outcome of the last {@link #WINDOW} requests is tracked. Once at least
+ * {@link #MIN_REQUESTS} of them are known and the ratio of failures reaches the failure rate,
+ * the circuit opens: requests are not sent anymore, and fail right away with
+ * {@link BranchSearchError.ERR_CODE#CIRCUIT_OPEN_ERR}, instead of spending a thread and a
+ * timeout each on a server that is down or unreachable.
+ *
+ * After the open duration, the circuit is half-open: a single probe request is let through.
+ * If it succeeds, the circuit closes. If it fails, the circuit opens again, for twice as long
+ * each time, up to 8 times the open duration.
+ *
+ * Only server errors, timeouts and connectivity errors count as failures. Errors like
+ * UNAUTHORIZED_ERR mean that the server is up. This is safe to use from any thread.
+ */
+class BranchCircuitBreaker {
+    private static final int WINDOW = 20;
+    private static final int MIN_REQUESTS = 10;
+    private static final int MAX_OPEN_SHIFT = 3;
+
+    private float failureRate;
+    private long openMillis;
+
+    private final boolean[] failures = new boolean[WINDOW];
+    private int outcomeCount;
+    private int failureCount;
+
+    // Written while holding the lock, and read without it by metrics snapshots.
+    private volatile CircuitState state = CircuitState.CLOSED;
+    private volatile long openUntil;
+    private int openCount;
+    private boolean isProbing;
+    private volatile int rejectedCount;
+
+    /**
+     * @param failureRate the ratio of failures that opens the circuit. 0 disables it.
+     * @param openMillis how long the circuit stays open before a probe is sent
+     */
+    synchronized void configure(float failureRate, long openMillis) {
+        this.failureRate = Math.max(0F, Math.min(failureRate, 1F));
+        this.openMillis = Math.max(0, openMillis);
+        close();
+    }
+
+    /**
+     * Returns whether a request can be sent. If not, it should fail with CIRCUIT_OPEN_ERR.
+     * @return true if the request can be sent
+     */
+    synchronized boolean allowRequest() {
+        if (failureRate <= 0) return true;
+        if (state == CircuitState.OPEN) {
+            if (SystemClock.elapsedRealtime() < openUntil) {
+                rejectedCount++;
+                return false;
+            }
+            state = CircuitState.HALF_OPEN;
+        }
+        if (state == CircuitState.HALF_OPEN) {
+            if (isProbing) {
+                rejectedCount++;
+                return false;
+            }
+            isProbing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a request that was sent.
+     * @param result the result or error of the request
+     */
+    synchronized void onResult(@NonNull JSONObject result) {
+        if (failureRate <= 0) return;
+        boolean isFailure = isFailure(result);
+        if (state == CircuitState.HALF_OPEN) {
+            if (isFailure) {
+                open();
+            } else {
+                close();
+            }
+        } else if (state == CircuitState.CLOSED) {
+            int index = outcomeCount % WINDOW;
+            if (outcomeCount >= WINDOW && failures[index]) failureCount--;
+            failures[index] = isFailure;
+            if (isFailure) failureCount++;
+            outcomeCount++;
+            int count = Math.min(outcomeCount, WINDOW);
+            if (count >= MIN_REQUESTS && failureCount >= failureRate * count) {
+                open();
+            }
+        }
+        // Late results of requests sent before the circuit opened are ignored.
+    }
+
+    /**
+     * Records that a request was canceled before its outcome was known. If it was the probe,
+     * another one can be sent.
+     */
+    synchronized void onCanceled() {
+        if (state == CircuitState.HALF_OPEN) {
+            isProbing = false;
+        }
+    }
+
+    /**
+     * @return the state of the circuit.
+     */
+    @NonNull
+    CircuitState getState() {
+        CircuitState state = this.state;
+        if (state == CircuitState.OPEN && SystemClock.elapsedRealtime() >= openUntil) {
+            // The next request will be a probe.
+            return CircuitState.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return the number of requests that failed fast because the circuit was open.
+     */
+    int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private void open() {
+        openUntil = SystemClock.elapsedRealtime() + (openMillis << Math.min(openCount, MAX_OPEN_SHIFT));
+        state = CircuitState.OPEN;
+        openCount++;
+        isProbing = false;
+        resetWindow();
+    }
+
+    private void close() {
+        state = CircuitState.CLOSED;
+        openCount = 0;
+        isProbing = false;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        outcomeCount = 0;
+        failureCount = 0;
+    }
+
+    private static boolean isFailure(@NonNull JSONObject result) {
+        if (!(result instanceof BranchSearchError)) return false;
+        switch (((BranchSearchError) result).getErrorCode()) {
+            case INTERNAL_SERVER_ERR:
+            case REQUEST_TIMED_OUT_ERR:
+            case BRANCH_NO_CONNECTIVITY_ERR:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
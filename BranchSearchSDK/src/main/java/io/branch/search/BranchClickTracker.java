@@ -0,0 +1,495 @@
+package io.branch.search;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends click tracking events, see {@link BranchLinkResult#registerClickEvent()}.
+ *
+ * Unlike the {@link URLConnectionNetworkHandler} channels, this pipeline never cancels anything:
+ * every click is queued and sent. Events are sent one after the other by a single background
+ * priority thread, so they never compete with search traffic for threads, and a burst of clicks
+ * goes out back to back over the same pooled connection instead of opening new ones.
+ *
+ * Events are also written to an append-only journal in the app files directory before being
+ * sent, so they survive the process dying or the device being offline:
+ * - "+seq url" lines add an event, "-seq" lines acknowledge it
+ * - the journal is replayed on initialization, and pending events are retried with exponential
+ *   backoff, or right away when connectivity comes back after it was lost
+ * - it is compacted to the pending events once it grows past {@link #MAX_JOURNAL_BYTES}, so
+ *   that each click costs an append and not a rewrite, and the oldest events are dropped if
+ *   there are more than {@link #MAX_PENDING_EVENTS}
+ *
+ * All of the state below, except for the atomics, is only touched by the tracker thread.
+ */
+class BranchClickTracker {
+    private static final String TAG = "BranchClickTracker";
+    private static final String JOURNAL_NAME = "io.branch.search.clicks";
+
+    @VisibleForTesting static final int MAX_PENDING_EVENTS = 200;
+    private static final int MAX_JOURNAL_BYTES = 64 * 1024;
+    private static final long MIN_BACKOFF_MILLIS = 1000L;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+    private static BranchClickTracker sInstance;
+
+    private final BranchExecutor executor
+            = new BranchExecutor(1, BranchMetricsSnapshot.PriorityClass.BACKGROUND);
+    private final Handler timer = new Handler(Looper.getMainLooper());
+    private final ConcurrentLinkedQueue<String> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isDraining = new AtomicBoolean();
+    private final AtomicInteger sentCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean shouldResetBackoff = new AtomicBoolean();
+    private volatile boolean isRetryScheduled;
+    private volatile boolean isOffline;
+    private volatile boolean isClosed;
+    private volatile BranchTransport transport = BranchTransport.NETWORK;
+    private OkHttpClient client; // Only used on the executor thread
+    private OkHttpClient clientBase;
+    private BranchTransport clientTransport;
+
+    private final Context context;
+    private final File journal;
+    private final LinkedHashMap<Long, String> pending = new LinkedHashMap<>();
+    private boolean isLoaded;
+    private long nextSeq;
+    private long backoffMillis;
+    private long retryAt;
+    private BroadcastReceiver connectivityReceiver;
+    private Object connectivityCallback; // A ConnectivityManager.NetworkCallback, on API 24+
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            do {
+                drainOnce();
+                isDraining.set(false);
+                // An event might have been queued after we last looked, but before we
+                // cleared the flag. If so, whoever queued it did not schedule a drain.
+            } while (!incoming.isEmpty() && isDraining.compareAndSet(false, true));
+        }
+    };
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            isRetryScheduled = false;
+            schedule();
+        }
+    };
+
+    /**
+     * Returns the tracker of this process. There's one per process, since they share a journal.
+     * @param context a context
+     * @return the tracker
+     */
+    @NonNull
+    static synchronized BranchClickTracker getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new BranchClickTracker(appContext,
+                    new File(appContext.getFilesDir(), JOURNAL_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param context a context used to watch connectivity, or null
+     * @param journal the journal file, or null to keep events in memory only
+     */
+    @VisibleForTesting
+    BranchClickTracker(@Nullable Context context, @Nullable File journal) {
+        this.context = context;
+        this.journal = journal;
+    }
+
+    /**
+     * Queues a click event. This does not block.
+     * @param url the click tracking url
+     */
+    void track(@NonNull String url) {
+        if (isClosed) {
+            Log.w(TAG, "Dropping click event after close: " + url);
+            return;
+        }
+        incoming.add(url);
+        schedule();
+    }
+
+    /**
+     * Sets the transport that sends the events. Defaults to {@link BranchTransport#NETWORK}.
+     */
+    void setTransport(@NonNull BranchTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sends the events left in the journal, if any. This does not block. Events that failed
+     * recently still wait for their backoff.
+     */
+    void replay() {
+        schedule();
+    }
+
+    /**
+     * Stops sending events, as if the process died. Pending events stay in the journal, and
+     * events tracked after this are dropped.
+     */
+    @VisibleForTesting
+    void close() {
+        isClosed = true;
+        timer.removeCallbacks(retry);
+        executor.shutdownNow();
+    }
+
+    private void schedule() {
+        if (isClosed) return;
+        if (isDraining.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime.
+            }
+        }
+    }
+
+    @WorkerThread
+    private void drainOnce() {
+        if (!isLoaded) {
+            load();
+            isLoaded = true;
+        }
+        if (shouldResetBackoff.getAndSet(false)) {
+            backoffMillis = 0;
+            retryAt = 0;
+        }
+
+        // Journal the new events before trying to send them.
+        StringBuilder lines = new StringBuilder();
+        String url;
+        while ((url = incoming.poll()) != null) {
+            long seq = nextSeq++;
+            pending.put(seq, url);
+            lines.append('+').append(seq).append(' ').append(url).append('\n');
+        }
+        if (lines.length() > 0) append(lines);
+        trim();
+
+        if (SystemClock.elapsedRealtime() >= retryAt) {
+            send();
+        }
+        pendingCount.set(pending.size());
+        compact();
+        updateRetry();
+    }
+
+    @WorkerThread
+    private void send() {
+        StringBuilder acks = new StringBuilder();
+        Iterator<Map.Entry<Long, String>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, String> event = iterator.next();
+            if (!send(event.getValue())) {
+                // Keep this one and the following ones for later.
+                failedCount.incrementAndGet();
+                backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS
+                        : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+                // Jitter, so that devices that went offline together don't retry together.
+                long delay = backoffMillis / 2 + (long) (Math.random() * backoffMillis / 2);
+                retryAt = SystemClock.elapsedRealtime() + delay;
+                break;
+            }
+            iterator.remove();
+            sentCount.incrementAndGet();
+            acks.append('-').append(event.getKey()).append('\n');
+            backoffMillis = 0;
+            retryAt = 0;
+        }
+        if (acks.length() > 0) append(acks);
+    }
+
+    // Returns true if the server got the event. Client errors will not get better with a retry,
+    // so they count as delivered too.
+    @WorkerThread
+    private boolean send(@NonNull String url) {
+        Request request;
+        try {
+            request = new Request.Builder().url(url).get().build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping invalid click tracking url: " + url);
+            return true;
+        }
+        try {
+            Response response = getClient().newCall(request).execute();
+            response.close();
+            return response.code() < 500;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Returns the shared client, with our transport. Either can change, see setTransport.
+    @WorkerThread
+    @NonNull
+    private OkHttpClient getClient() {
+        BranchTransport transport = this.transport;
+        if (clientBase != URLConnectionTask.sClient || clientTransport != transport) {
+            clientBase = URLConnectionTask.sClient;
+            clientTransport = transport;
+            client = transport == BranchTransport.NETWORK ? clientBase
+                    : URLConnectionNetworkHandler.addTransport(clientBase.newBuilder(), transport)
+                            .build();
+        }
+        return client;
+    }
+
+    // Drops the oldest events if there are too many.
+    @WorkerThread
+    private void trim() {
+        Iterator<Long> iterator = pending.keySet().iterator();
+        while (pending.size() > MAX_PENDING_EVENTS && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    @WorkerThread
+    private void updateRetry() {
+        final boolean needsRetry = !pending.isEmpty();
+        if (needsRetry && !isRetryScheduled) {
+            isRetryScheduled = true;
+            timer.postDelayed(retry, Math.max(0, retryAt - SystemClock.elapsedRealtime()));
+        }
+        watchConnectivity(needsRetry);
+    }
+
+    // Retries right away when connectivity comes back, as long as there are pending events.
+    // Only a real transition resets the backoff: registering fires the current state right
+    // away, and the network can change without ever being lost.
+    private void onConnectivityChanged(boolean isConnected) {
+        boolean wasOffline = isOffline;
+        isOffline = !isConnected;
+        if (isConnected && wasOffline) {
+            shouldResetBackoff.set(true);
+            schedule();
+        }
+    }
+
+    @WorkerThread
+    private void watchConnectivity(boolean watch) {
+        if (context == null
+                || watch == (connectivityReceiver != null || connectivityCallback != null)) return;
+        ConnectivityManager manager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (watch) {
+            if (manager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    && context.checkCallingOrSelfPermission(
+                            Manifest.permission.ACCESS_NETWORK_STATE)
+                    == PackageManager.PERMISSION_GRANTED) {
+                ConnectivityManager.NetworkCallback callback =
+                        new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        onConnectivityChanged(true);
+                    }
+
+                    @Override
+                    public void onLost(Network network) {
+                        onConnectivityChanged(false);
+                    }
+                };
+                isOffline = manager.getActiveNetwork() == null;
+                manager.registerDefaultNetworkCallback(callback);
+                connectivityCallback = callback;
+            } else {
+                connectivityReceiver = createConnectivityReceiver();
+                context.registerReceiver(connectivityReceiver, createConnectivityFilter());
+            }
+        } else if (connectivityCallback != null) {
+            if (manager != null) {
+                manager.unregisterNetworkCallback(
+                        (ConnectivityManager.NetworkCallback) connectivityCallback);
+            }
+            connectivityCallback = null;
+        } else {
+            context.unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+        }
+    }
+
+    // Our minSdk is 15, and network callbacks need API 24 and ACCESS_NETWORK_STATE, which we
+    // can't count on. Below that, the deprecated broadcast is the only way to hear about it.
+    @NonNull
+    private BroadcastReceiver createConnectivityReceiver() {
+        return new BroadcastReceiver() {
+            @SuppressWarnings("deprecation")
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                boolean isConnected =
+                        !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+                if (isInitialStickyBroadcast()) {
+                    // The current state, not a change.
+                    isOffline = !isConnected;
+                } else {
+                    onConnectivityChanged(isConnected);
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("deprecation")
+    @NonNull
+    private static IntentFilter createConnectivityFilter() {
+        return new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+    }
+
+    @WorkerThread
+    private void load() {
+        if (journal == null || !journal.exists()) return;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(journal));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    parse(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the click journal", e);
+        }
+        // Start over with a compact journal.
+        rewrite();
+    }
+
+    @WorkerThread
+    private void parse(@NonNull String line) {
+        try {
+            if (line.startsWith("+")) {
+                int space = line.indexOf(' ');
+                long seq = Long.parseLong(line.substring(1, space));
+                pending.put(seq, line.substring(space + 1));
+                nextSeq = Math.max(nextSeq, seq + 1);
+            } else if (line.startsWith("-")) {
+                pending.remove(Long.parseLong(line.substring(1)));
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            // A line that was cut short when the process died. Skip it.
+        }
+    }
+
+    @WorkerThread
+    private void compact() {
+        if (journal != null && journal.length() > MAX_JOURNAL_BYTES) {
+            rewrite();
+        }
+    }
+
+    // Writes the pending events to a new journal, and replaces the old one.
+    @WorkerThread
+    private void rewrite() {
+        if (journal == null) return;
+        if (pending.isEmpty()) {
+            journal.delete();
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Long, String> event : pending.entrySet()) {
+            lines.append('+').append(event.getKey()).append(' ').append(event.getValue()).append('\n');
+        }
+        File temp = new File(journal.getPath() + ".tmp");
+        if (write(temp, lines, false) && !temp.renameTo(journal)) {
+            Log.w(TAG, "Unable to compact the click journal");
+        }
+    }
+
+    @WorkerThread
+    private void append(@NonNull CharSequence lines) {
+        if (journal != null) write(journal, lines, true);
+    }
+
+    @WorkerThread
+    private static boolean write(@NonNull File file, @NonNull CharSequence lines, boolean append) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8");
+            try {
+                writer.append(lines);
+            } finally {
+                writer.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the click journal", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of click events that reached the server.
+     */
+    int getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of failed attempts to send click events. They will be retried.
+     */
+    int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of click events that were dropped because too many were pending.
+     */
+    int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of click events waiting to be sent.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+}
@@ -4,12 +4,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Branch Configuration.  Use the Branch Configuration to override default Search options.
@@ -19,6 +24,16 @@ import java.util.Locale;
 public class BranchConfiguration {
     final static String MANIFEST_KEY = "io.branch.sdk.BranchKey";
 
+    final static long DEFAULT_SEARCH_CACHE_TTL_MILLIS = 60 * 1000L;
+    final static int DEFAULT_SEARCH_CACHE_SIZE_BYTES = 256 * 1024;
+    final static long DEFAULT_AUTOSUGGEST_CACHE_TTL_MILLIS = 5 * 60 * 1000L;
+    final static long DEFAULT_QUERYHINT_CACHE_TTL_MILLIS = 60 * 60 * 1000L;
+    final static int DEFAULT_SEARCH_RETRIES = 1;
+    final static int DEFAULT_QUERYHINT_RETRIES = 2;
+    final static float DEFAULT_CIRCUIT_FAILURE_RATE = 0.5F;
+    final static long DEFAULT_CIRCUIT_OPEN_MILLIS = 5000L;
+    final static long DEFAULT_PREFETCH_BUDGET_BYTES = 512 * 1024L;
+
     private String url;
     private String key;
 
@@ -27,6 +42,29 @@ public class BranchConfiguration {
     private Locale locale;      ///< Override BranchDeviceInfo
     private String countryCode;
     private int intentFlags = Intent.FLAG_ACTIVITY_NEW_TASK;
+    private long searchCacheTTL = DEFAULT_SEARCH_CACHE_TTL_MILLIS;
+    private int searchCacheSize = DEFAULT_SEARCH_CACHE_SIZE_BYTES;
+    private long autoSuggestCacheTTL = DEFAULT_AUTOSUGGEST_CACHE_TTL_MILLIS;
+    private boolean autoSuggestProvisionalResults;
+    private int prefetchCount;
+    private long prefetchBudget = DEFAULT_PREFETCH_BUDGET_BYTES;
+    private long queryHintCacheTTL = DEFAULT_QUERYHINT_CACHE_TTL_MILLIS;
+    private boolean queryHintSynchronousDelivery;
+    private final long[] coalescingWindows = new long[BranchSearch.Channel.values().length];
+    private final boolean[] coalescingAdaptive = new boolean[BranchSearch.Channel.values().length];
+    private final float[] hedgePercentiles = new float[BranchSearch.Channel.values().length];
+    private final float[] hedgeBudgets = new float[BranchSearch.Channel.values().length];
+    private final long[] timeouts = new long[BranchSearch.Channel.values().length];
+    private final boolean[] timeoutAdaptive = new boolean[BranchSearch.Channel.values().length];
+    private final int[] retries = new int[BranchSearch.Channel.values().length];
+    private final float[] circuitFailureRates = new float[BranchSearch.Channel.values().length];
+    private final long[] circuitOpenMillis = new long[BranchSearch.Channel.values().length];
+    private Executor callbackExecutor = Util.MAIN_THREAD_EXECUTOR;
+    private IBranchInstrumentationListener instrumentationListener;
+    private BranchTransport transport = BranchTransport.NETWORK;
+
+    // Changes whenever a value of addConfigurationInfo changes, see BranchStaticPayload.
+    private final AtomicInteger payloadVersion = new AtomicInteger();
 
     // JSONKeys associated with a Configuration
     enum JSONKey {
@@ -50,6 +88,10 @@ public class BranchConfiguration {
 
 
     public BranchConfiguration() {
+        retries[BranchSearch.Channel.SEARCH.ordinal()] = DEFAULT_SEARCH_RETRIES;
+        retries[BranchSearch.Channel.QUERYHINT.ordinal()] = DEFAULT_QUERYHINT_RETRIES;
+        Arrays.fill(circuitFailureRates, DEFAULT_CIRCUIT_FAILURE_RATE);
+        Arrays.fill(circuitOpenMillis, DEFAULT_CIRCUIT_OPEN_MILLIS);
     }
 
     /**
@@ -71,6 +113,7 @@ public class BranchConfiguration {
         // Check to see if the configuration already has a valid country code.  Default if not.
         if (TextUtils.isEmpty(countryCode)) {
             this.countryCode = Util.getCountryCode(context);
+            payloadVersion.incrementAndGet();
         }
 
         return this;
@@ -98,6 +141,7 @@ public class BranchConfiguration {
      */
     public BranchConfiguration setBranchKey(String key) {
         this.key = key;
+        payloadVersion.incrementAndGet();
         return this;
     }
 
@@ -117,12 +161,317 @@ public class BranchConfiguration {
         return intentFlags;
     }
 
+    /**
+     * Set how long search results are kept in the {@link BranchSearchCache}.
+     * A value of 0 disables the cache.
+     * @param ttlMillis time to live, in milliseconds
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setSearchCacheTTL(long ttlMillis) {
+        this.searchCacheTTL = Math.max(0, ttlMillis);
+        return this;
+    }
+
+    long getSearchCacheTTL() {
+        return searchCacheTTL;
+    }
+
+    /**
+     * Set the maximum memory, in bytes, that the {@link BranchSearchCache} can use for results.
+     * This is an estimate. A value of 0 disables the cache.
+     * @param sizeBytes maximum size, in bytes
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setSearchCacheSize(int sizeBytes) {
+        this.searchCacheSize = Math.max(0, sizeBytes);
+        return this;
+    }
+
+    int getSearchCacheSize() {
+        return searchCacheSize;
+    }
+
+    /**
+     * Set how long auto-suggestions are kept in the {@link BranchAutoSuggestCache}.
+     * A value of 0 disables the cache.
+     * @param ttlMillis time to live, in milliseconds
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setAutoSuggestCacheTTL(long ttlMillis) {
+        this.autoSuggestCacheTTL = Math.max(0, ttlMillis);
+        return this;
+    }
+
+    long getAutoSuggestCacheTTL() {
+        return autoSuggestCacheTTL;
+    }
+
+    /**
+     * Whether auto-suggest should deliver provisional results, filtered locally from the results
+     * of a shorter prefix, while the real request runs. When enabled,
+     * {@link IBranchQueryResults#onQueryResult(BranchQueryResult)} can be called twice for
+     * the same request. Defaults to false.
+     * @param enabled true to enable
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setAutoSuggestProvisionalResults(boolean enabled) {
+        this.autoSuggestProvisionalResults = enabled;
+        return this;
+    }
+
+    boolean hasAutoSuggestProvisionalResults() {
+        return autoSuggestProvisionalResults;
+    }
+
+    /**
+     * Prefetch the search results of the top auto-suggestions in the background, into the
+     * {@link BranchSearchCache}, so that a tapped suggestion is answered from memory. To hit
+     * the prefetched results, the search request of a suggestion should be created with
+     * {@link BranchSearchRequest#Create(String)} and
+     * {@link BranchQuerySource#AUTOSUGGEST_RESULTS}, and have the location of the auto-suggest
+     * request. On metered networks, only the first suggestion is prefetched.
+     * Defaults to 0, which disables prefetching.
+     * @param count the number of suggestions to prefetch
+     * @param budgetBytes the maximum number of response bytes to prefetch in a session
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setAutoSuggestPrefetch(int count, long budgetBytes) {
+        this.prefetchCount = Math.max(0, count);
+        this.prefetchBudget = Math.max(0, budgetBytes);
+        return this;
+    }
+
+    int getAutoSuggestPrefetchCount() {
+        return prefetchCount;
+    }
+
+    long getAutoSuggestPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+    /**
+     * Set how long query hints are considered fresh. Query hints are persisted, and
+     * {@link BranchSearch#queryHint(IBranchQueryResults)} delivers the persisted ones right away.
+     * If they are older than this TTL, they are also refreshed in the background, and the
+     * refreshed hints are delivered only if they changed. A value of 0 disables the cache.
+     * @param ttlMillis time to live, in milliseconds
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setQueryHintCacheTTL(long ttlMillis) {
+        this.queryHintCacheTTL = Math.max(0, ttlMillis);
+        return this;
+    }
+
+    long getQueryHintCacheTTL() {
+        return queryHintCacheTTL;
+    }
+
+    /**
+     * Whether persisted query hints should be delivered synchronously, before
+     * {@link BranchSearch#queryHint(IBranchQueryResults)} returns. Defaults to false, in which
+     * case they are posted to the callback executor, see {@link #setCallbackExecutor(Executor)}.
+     * @param enabled true to enable
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setQueryHintSynchronousDelivery(boolean enabled) {
+        this.queryHintSynchronousDelivery = enabled;
+        return this;
+    }
+
+    boolean hasQueryHintSynchronousDelivery() {
+        return queryHintSynchronousDelivery;
+    }
+
+    /**
+     * Enable coalescing of requests on the given channel. Requests are held for a quiet window,
+     * and a new request received within the window replaces the held one, which receives a
+     * {@link BranchSearchError.ERR_CODE#REQUEST_CANCELED} error. This saves threads and
+     * sockets during fast typing, at the cost of delaying each request by up to the window.
+     * @param channel the channel
+     * @param windowMillis the quiet window, in milliseconds. 0 disables coalescing (the default)
+     * @param adaptive whether the window should adapt to the observed interval between requests,
+     *                 so that slow typing is not delayed. The window never exceeds windowMillis.
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setCoalescingWindow(@NonNull BranchSearch.Channel channel,
+                                                   long windowMillis, boolean adaptive) {
+        this.coalescingWindows[channel.ordinal()] = Math.max(0, windowMillis);
+        this.coalescingAdaptive[channel.ordinal()] = adaptive;
+        return this;
+    }
+
+    long getCoalescingWindow(@NonNull BranchSearch.Channel channel) {
+        return coalescingWindows[channel.ordinal()];
+    }
+
+    boolean isCoalescingAdaptive(@NonNull BranchSearch.Channel channel) {
+        return coalescingAdaptive[channel.ordinal()];
+    }
+
+    /**
+     * Enable hedging of requests on the given channel. This is mostly useful for
+     * {@link BranchSearch.Channel#SEARCH}. If a request has not answered after the given
+     * percentile of the recently observed round trip times, a duplicate request is sent.
+     * The first answer is delivered, and the other request is canceled.
+     * @param channel the channel
+     * @param percentile the round trip time percentile, for example 0.95. 0 disables hedging
+     *                   (the default)
+     * @param budget the maximum ratio of duplicate requests to requests, for example 0.05 to
+     *               add at most 5% of extra load
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setHedging(@NonNull BranchSearch.Channel channel,
+                                          float percentile, float budget) {
+        this.hedgePercentiles[channel.ordinal()] = percentile;
+        this.hedgeBudgets[channel.ordinal()] = budget;
+        return this;
+    }
+
+    float getHedgePercentile(@NonNull BranchSearch.Channel channel) {
+        return hedgePercentiles[channel.ordinal()];
+    }
+
+    float getHedgeBudget(@NonNull BranchSearch.Channel channel) {
+        return hedgeBudgets[channel.ordinal()];
+    }
+
+    /**
+     * Set the timeout of requests on the given channel. A request that times out receives a
+     * {@link BranchSearchError.ERR_CODE#REQUEST_TIMED_OUT_ERR} error. For example, an
+     * auto-suggestion that comes after a few seconds is of no use anymore, while a search
+     * might be worth waiting for.
+     * @param channel the channel
+     * @param timeoutMillis the timeout, in milliseconds. 0 restores the default, 6 seconds
+     * @param adaptive whether the timeout should adapt to the recently observed round trip
+     *                 times, so that requests fail fast when the network is usually quick.
+     *                 The timeout never exceeds timeoutMillis.
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setTimeout(@NonNull BranchSearch.Channel channel,
+                                          long timeoutMillis, boolean adaptive) {
+        this.timeouts[channel.ordinal()] = Math.max(0, timeoutMillis);
+        this.timeoutAdaptive[channel.ordinal()] = adaptive;
+        return this;
+    }
+
+    long getTimeout(@NonNull BranchSearch.Channel channel) {
+        return timeouts[channel.ordinal()];
+    }
+
+    boolean isTimeoutAdaptive(@NonNull BranchSearch.Channel channel) {
+        return timeoutAdaptive[channel.ordinal()];
+    }
+
+    /**
+     * Set the maximum number of retries of requests on the given channel that fail with a
+     * server error or a network error. Retries are spread with a jittered exponential backoff,
+     * only happen within the timeout of the request (see
+     * {@link #setTimeout(BranchSearch.Channel, long, boolean)}), and are limited to a fraction
+     * of the successful requests, so that a failing server is not flooded with retries.
+     * By default, searches are retried once, query hints twice, and auto-suggestions never,
+     * since a newer auto-suggestion is usually on its way.
+     * @param channel the channel
+     * @param maxRetries the maximum number of retries. 0 disables retries
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setRetries(@NonNull BranchSearch.Channel channel, int maxRetries) {
+        this.retries[channel.ordinal()] = Math.max(0, maxRetries);
+        return this;
+    }
+
+    int getRetries(@NonNull BranchSearch.Channel channel) {
+        return retries[channel.ordinal()];
+    }
+
+    /**
+     * Configure the circuit breaker of the given channel. When the ratio of requests failing
+     * with a server, timeout or connectivity error reaches the failure rate, the circuit opens:
+     * requests fail right away with {@link BranchSearchError.ERR_CODE#CIRCUIT_OPEN_ERR} instead
+     * of waiting for a server that is down. After the open duration, a single request is sent
+     * to probe the service, and the circuit closes if it succeeds. The state of the circuit is
+     * available in {@link BranchSearch#getMetricsSnapshot()}.
+     * By default, circuits open at a 50% failure rate, for 5 seconds.
+     * @param channel the channel
+     * @param failureRate the failure rate, between 0 and 1. 0 disables the circuit breaker
+     * @param openMillis how long the circuit stays open before probing, in milliseconds
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setCircuitBreaker(@NonNull BranchSearch.Channel channel,
+                                                 float failureRate, long openMillis) {
+        this.circuitFailureRates[channel.ordinal()] = failureRate;
+        this.circuitOpenMillis[channel.ordinal()] = openMillis;
+        return this;
+    }
+
+    float getCircuitFailureRate(@NonNull BranchSearch.Channel channel) {
+        return circuitFailureRates[channel.ordinal()];
+    }
+
+    long getCircuitOpenMillis(@NonNull BranchSearch.Channel channel) {
+        return circuitOpenMillis[channel.ordinal()];
+    }
+
+    /**
+     * Set the executor that results and errors are delivered on, for example to post-process
+     * results in the background without hopping back from the main thread.
+     * A multi-threaded executor can deliver an older result after a newer one, so use a serial
+     * executor if order matters. An executor that runs tasks right away delivers results on the
+     * network thread, without any thread hop.
+     * @param executor the executor, or null to deliver on the main thread (the default)
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setCallbackExecutor(@Nullable Executor executor) {
+        this.callbackExecutor = executor == null ? Util.MAIN_THREAD_EXECUTOR : executor;
+        return this;
+    }
+
+    @NonNull
+    Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * Set a listener that observes how network requests are scheduled: thread and queue
+     * activity, queue waits, run times and cancellations. Threads are shared by the whole SDK,
+     * so this applies to the SDK instance that is initialized with this configuration.
+     * Nothing is measured when there is no listener.
+     * @param listener the listener, or null for none (the default)
+     * @return this BranchConfiguration
+     */
+    public BranchConfiguration setInstrumentationListener(
+            @Nullable IBranchInstrumentationListener listener) {
+        this.instrumentationListener = listener;
+        return this;
+    }
+
+    @Nullable
+    IBranchInstrumentationListener getInstrumentationListener() {
+        return instrumentationListener;
+    }
+
+    /**
+     * Set the transport of network requests, for example a {@link BranchFakeTransport} to
+     * benchmark the SDK without a network.
+     * @param transport the transport, or null to use the network (the default)
+     * @return this BranchConfiguration
+     */
+    BranchConfiguration setTransport(@Nullable BranchTransport transport) {
+        this.transport = transport == null ? BranchTransport.NETWORK : transport;
+        return this;
+    }
+
+    @NonNull
+    BranchTransport getTransport() {
+        return transport;
+    }
+
     /**
      * Enables or disables ad tracking limiting.
      * @param limit true to limit
      */
     void limitAdTracking(boolean limit) {
         is_lat = limit;
+        payloadVersion.incrementAndGet();
     }
 
     /**
@@ -148,6 +497,7 @@ public class BranchConfiguration {
      */
     BranchConfiguration setGoogleAdID(String id) {
         this.googleAdID = id;
+        payloadVersion.incrementAndGet();
         return this;
     }
 
@@ -165,6 +515,7 @@ public class BranchConfiguration {
      */
     BranchConfiguration setLocale(Locale locale) {
         this.locale = locale;
+        payloadVersion.incrementAndGet();
         return this;
     }
 
@@ -183,6 +534,7 @@ public class BranchConfiguration {
      */
     BranchConfiguration setCountryCode(String cc) {
         this.countryCode = cc;
+        payloadVersion.incrementAndGet();
         return this;
     }
 
@@ -213,6 +565,11 @@ public class BranchConfiguration {
         }
 
         this.key = branch_key;
+        payloadVersion.incrementAndGet();
+    }
+
+    int getPayloadVersion() {
+        return payloadVersion.get();
     }
 
     /**
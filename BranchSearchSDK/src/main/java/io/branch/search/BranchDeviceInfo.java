@@ -22,6 +22,7 @@ public class BranchDeviceInfo {
     private static String _carrierName = UNKNOWN_CARRIER;
     private static DisplayMetrics _displayMetrics;
     private static Locale _locale;
+    private static volatile int _infoVersion;
 
     enum JSONKey {
         Brand("brand"),
@@ -53,6 +54,14 @@ public class BranchDeviceInfo {
         initCarrierCheck(context);
         initDisplayMetrics(context);
         initLocale(context);
+        _infoVersion++;
+    }
+
+    /**
+     * @return a number that changes every time the device info is refreshed.
+     */
+    static int getInfoVersion() {
+        return _infoVersion;
     }
 
     /**
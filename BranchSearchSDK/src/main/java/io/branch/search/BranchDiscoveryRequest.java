@@ -5,6 +5,8 @@ import android.location.Location;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * Request model for Branch Discovery.
  */
@@ -73,6 +75,14 @@ public class BranchDiscoveryRequest<T extends BranchDiscoveryRequest> {
         return (T)this;
     }
 
+    double getLatitude() {
+        return user_latitude;
+    }
+
+    double getLongitude() {
+        return user_longitude;
+    }
+
     JSONObject convertToJson(JSONObject jsonObject) {
         try {
             jsonObject.putOpt(JSONKey.Latitude.toString(), user_latitude);
@@ -87,4 +97,15 @@ public class BranchDiscoveryRequest<T extends BranchDiscoveryRequest> {
         }
         return jsonObject;
     }
+
+    /**
+     * Writes the same fields as {@link #convertToJson(JSONObject)}, without allocating.
+     * @param writer the writer of the payload
+     * @param timestamp the payload timestamp
+     */
+    void writeTo(BranchJsonWriter writer, long timestamp) throws IOException {
+        writer.member(JSONKey.Latitude.toString(), user_latitude);
+        writer.member(JSONKey.Longitude.toString(), user_longitude);
+        writer.member(JSONKey.Timestamp.toString(), timestamp);
+    }
 }
@@ -1,18 +1,18 @@
 package io.branch.search;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
-
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.SynchronousQueue;
+import android.support.annotation.Nullable;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.branch.search.BranchMetricsSnapshot.PriorityClass;
 
 
 /**
@@ -29,36 +29,276 @@ import java.util.concurrent.atomic.AtomicInteger;
  * and what it does with this Executor. Specifically, it will often cancel requests and free up
  * threads, which means we will never have the "work queue growth" problem described in
  * {@link ThreadPoolExecutor}.
+ *
+ * The queue is not FIFO: each task has a {@link PriorityClass}, so that a search the user is
+ * waiting for goes ahead of background traffic. To keep the low classes from starving, a task
+ * is ordered by its enqueue time plus {@link #AGING_MILLIS} per class above it: a background
+ * task that waited long enough goes ahead of newer searches. The time that tasks of each class
+ * spend in the queue is recorded, see {@link #getQueueWait(PriorityClass)}. Threads and tasks
+ * can also be observed with a listener, see {@link #setListener(IBranchInstrumentationListener)}.
+ *
+ * An executor can be shared by several users, each through its own {@link Lane}. A lane runs
+ * at most a given number of tasks at once and holds the others back, in the same order, so
+ * that a busy user can not take all the threads and leaves some for the others.
  */
-class BranchExecutor implements Executor {
+class BranchExecutor extends ThreadPoolExecutor {
 
     private final static long KEEP_ALIVE_SECONDS = 5L;
+    private final static long AGING_MILLIS = 250L;
+    // Threads alive, across all executors.
+    private final static AtomicInteger sThreadCount = new AtomicInteger();
+    private static volatile IBranchInstrumentationListener sListener;
+
     private final static ThreadFactory FACTORY = new ThreadFactory() {
         private final AtomicInteger count = new AtomicInteger(1);
 
         @Override
-        public Thread newThread(@NonNull Runnable r) {
-            return new Thread(r, "BranchThread #" + count.getAndIncrement());
+        public Thread newThread(@NonNull final Runnable r) {
+            int threadCount = sThreadCount.incrementAndGet();
+            IBranchInstrumentationListener listener = sListener;
+            if (listener != null) listener.onThreadCreated(threadCount);
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        int threadCount = sThreadCount.decrementAndGet();
+                        IBranchInstrumentationListener listener = sListener;
+                        if (listener != null) listener.onThreadTerminated(threadCount);
+                    }
+                }
+            }, "BranchThread #" + count.getAndIncrement());
+        }
+    };
+
+    private final static Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable a, Runnable b) {
+            PriorityTask first = (PriorityTask) a;
+            PriorityTask second = (PriorityTask) b;
+            if (first.order != second.order) return first.order < second.order ? -1 : 1;
+            return first.sequence < second.sequence ? -1 : first.sequence == second.sequence ? 0 : 1;
         }
     };
 
-    private final ThreadPoolExecutor executor;
+    // Queue wait per class, across all executors.
+    private final static BranchLatencyHistogram[] sQueueWait
+            = new BranchLatencyHistogram[PriorityClass.values().length];
+
+    static {
+        for (int i = 0; i < sQueueWait.length; i++) {
+            sQueueWait[i] = new BranchLatencyHistogram();
+        }
+    }
+
+    /**
+     * A task waiting in the queue.
+     */
+    static class PriorityTask implements Runnable {
+        private final static AtomicLong sSequence = new AtomicLong();
+
+        final Runnable runnable;
+        final PriorityClass priorityClass;
+        final long enqueuedNanos = System.nanoTime();
+        final long order;
+        final long sequence = sSequence.getAndIncrement();
+        final Lane lane;
+        long startedNanos; // Only set when there is a listener.
+
+        PriorityTask(@NonNull Runnable runnable, @NonNull PriorityClass priorityClass,
+                     @Nullable Lane lane) {
+            this.runnable = runnable;
+            this.priorityClass = priorityClass;
+            this.lane = lane;
+            this.order = enqueuedNanos
+                    + TimeUnit.MILLISECONDS.toNanos(AGING_MILLIS) * priorityClass.ordinal();
+        }
+
+        @Override
+        public void run() {
+            try {
+                runnable.run();
+            } finally {
+                if (lane != null) lane.onDone();
+            }
+        }
+    }
+
+    /**
+     * A share of the executor, which runs at most a given number of tasks at once.
+     * Tasks over the limit wait in the lane, and their wait counts as queue wait.
+     */
+    static class Lane {
+        private final BranchExecutor executor;
+        private final int limit;
+        private final PriorityQueue<Runnable> pending = new PriorityQueue<>(11, ORDER);
+        private int runningCount; // Guarded by this
+
+        private Lane(@NonNull BranchExecutor executor, int limit) {
+            this.executor = executor;
+            this.limit = limit;
+        }
+
+        /**
+         * Executes a task of the given class in this lane.
+         * @param command the task
+         * @param priorityClass its class
+         * @return what was enqueued, which can be given to {@link #remove(Runnable)}
+         */
+        @NonNull
+        Runnable execute(@NonNull Runnable command, @NonNull PriorityClass priorityClass) {
+            PriorityTask task = new PriorityTask(command, priorityClass, this);
+            synchronized (this) {
+                if (runningCount >= limit) {
+                    pending.add(task);
+                    return task;
+                }
+                runningCount++;
+            }
+            executor.executeTask(task);
+            return task;
+        }
+
+        /**
+         * Removes a task that did not start yet.
+         * @param task what {@link #execute(Runnable, PriorityClass)} returned
+         * @return true if it was removed
+         */
+        boolean remove(@NonNull Runnable task) {
+            synchronized (this) {
+                if (pending.remove(task)) return true;
+            }
+            if (executor.remove(task)) {
+                // It held a slot of this lane.
+                onDone();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of tasks of this lane that are running or waiting for a thread.
+         */
+        synchronized int getRunningCount() {
+            return runningCount;
+        }
+
+        // Hands the slot of a finished task to the next one.
+        private void onDone() {
+            Runnable next;
+            synchronized (this) {
+                next = pending.poll();
+                if (next == null) {
+                    runningCount--;
+                    return;
+                }
+            }
+            executor.executeTask(next);
+        }
+    }
+
+    private final PriorityClass defaultClass;
 
     BranchExecutor(int poolSize) {
-        executor = new ThreadPoolExecutor(
+        this(poolSize, PriorityClass.SEARCH);
+    }
+
+    /**
+     * @param poolSize the maximum number of threads
+     * @param defaultClass the class of tasks given to {@link #execute(Runnable)}
+     */
+    BranchExecutor(int poolSize, @NonNull PriorityClass defaultClass) {
+        super(
                 poolSize,
                 poolSize,
                 KEEP_ALIVE_SECONDS,
                 TimeUnit.SECONDS,
                 // requests exceeding the pool size will go into this queue.
-                new LinkedBlockingQueue<Runnable>(),
+                new PriorityBlockingQueue<Runnable>(11, ORDER),
                 FACTORY
         );
-        executor.allowCoreThreadTimeOut(true);
+        allowCoreThreadTimeOut(true);
+        this.defaultClass = defaultClass;
     }
 
     @Override
     public void execute(@NonNull Runnable command) {
-        executor.execute(command);
+        if (!(command instanceof PriorityTask)) {
+            command = new PriorityTask(command, defaultClass, null);
+        }
+        super.execute(command);
+    }
+
+    private void executeTask(@NonNull Runnable task) {
+        super.execute(task);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        PriorityTask task = (PriorityTask) runnable;
+        long now = System.nanoTime();
+        sQueueWait[task.priorityClass.ordinal()].record(now - task.enqueuedNanos);
+        IBranchInstrumentationListener listener = sListener;
+        if (listener != null) {
+            task.startedNanos = now;
+            listener.onTaskStarted(task.priorityClass, now - task.enqueuedNanos,
+                    getActiveCount(), getQueue().size());
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable throwable) {
+        PriorityTask task = (PriorityTask) runnable;
+        IBranchInstrumentationListener listener = sListener;
+        if (listener != null && task.startedNanos != 0) {
+            listener.onTaskFinished(task.priorityClass, System.nanoTime() - task.startedNanos);
+        }
+    }
+
+    /**
+     * Executes a task of the given class.
+     * @param command the task
+     * @param priorityClass its class
+     * @return what was enqueued, which can be given to {@link #remove(Runnable)}
+     */
+    @NonNull
+    Runnable execute(@NonNull Runnable command, @NonNull PriorityClass priorityClass) {
+        PriorityTask task = new PriorityTask(command, priorityClass, null);
+        super.execute(task);
+        return task;
+    }
+
+    /**
+     * Creates a lane, a share of this executor.
+     * @param limit the maximum number of tasks of the lane that run at once
+     * @return the lane
+     */
+    @NonNull
+    Lane newLane(int limit) {
+        return new Lane(this, limit);
+    }
+
+    /**
+     * Sets the listener of all executors, see
+     * {@link BranchConfiguration#setInstrumentationListener(IBranchInstrumentationListener)}.
+     * @param listener the listener, or null for none
+     */
+    static void setListener(@Nullable IBranchInstrumentationListener listener) {
+        sListener = listener;
+    }
+
+    @Nullable
+    static IBranchInstrumentationListener getListener() {
+        return sListener;
+    }
+
+    /**
+     * @param priorityClass a class
+     * @return the time that tasks of this class spent waiting for a thread, in all executors.
+     */
+    @NonNull
+    static BranchLatencyHistogram getQueueWait(@NonNull PriorityClass priorityClass) {
+        return sQueueWait[priorityClass.ordinal()];
     }
 }
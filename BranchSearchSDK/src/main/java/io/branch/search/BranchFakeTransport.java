@@ -0,0 +1,156 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A {@link BranchTransport} that answers requests in process, without any network, so that
+ * scheduling, cancellation and parsing can be benchmarked offline and reproducibly.
+ *
+ * Each request waits for a latency drawn from a log-normal distribution, see
+ * {@link #setLatency(long, double)}, then either fails (see {@link #setErrorRates(float, float)})
+ * or answers with the canned payload of its path, see {@link #setResponse(String, String)}.
+ * Draws come from a seeded random generator, so the same seed gives the same sequence of
+ * latencies and errors. Canceled calls stop waiting right away, like a closed socket.
+ */
+class BranchFakeTransport implements BranchTransport {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final long CANCEL_CHECK_MILLIS = 5L;
+    private static final String DEFAULT_RESPONSE = "{}";
+
+    private final Random random;
+    private final Map<String, String> responses = new LinkedHashMap<>(); // Guarded by this
+    private long medianLatencyMillis;
+    private double latencySpread;
+    private float serverErrorRate;
+    private float failureRate;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger canceledCount = new AtomicInteger();
+
+    /**
+     * @param seed the seed of the latency and error draws
+     */
+    BranchFakeTransport(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets the latency of requests, which follows a log-normal distribution: half of the
+     * requests take less than the median.
+     * @param medianMillis the median latency
+     * @param spread the standard deviation of the log of the latency. 0 makes all requests
+     *               take the median, 0.5 makes about 1 in 12 requests take more than twice
+     *               the median.
+     * @return this transport
+     */
+    @NonNull
+    synchronized BranchFakeTransport setLatency(long medianMillis, double spread) {
+        this.medianLatencyMillis = Math.max(0, medianMillis);
+        this.latencySpread = Math.max(0, spread);
+        return this;
+    }
+
+    /**
+     * Sets the rates of failed requests.
+     * @param serverErrorRate the rate of requests that answer with HTTP 503
+     * @param failureRate the rate of requests that fail with an IOException, like a dropped
+     *                    connection
+     * @return this transport
+     */
+    @NonNull
+    synchronized BranchFakeTransport setErrorRates(float serverErrorRate, float failureRate) {
+        this.serverErrorRate = serverErrorRate;
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Sets the payload of successful responses to requests whose path ends with the given
+     * suffix. Other requests are answered with an empty JSON object.
+     * @param pathSuffix a path suffix, for example "autosuggest"
+     * @param body the JSON payload
+     * @return this transport
+     */
+    @NonNull
+    synchronized BranchFakeTransport setResponse(@NonNull String pathSuffix, @NonNull String body) {
+        responses.put(pathSuffix, body);
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Response execute(@NonNull Interceptor.Chain chain) throws IOException {
+        requestCount.incrementAndGet();
+        Request request = chain.request();
+        long latency;
+        double outcome;
+        String body = DEFAULT_RESPONSE;
+        synchronized (this) {
+            latency = Math.round(medianLatencyMillis
+                    * Math.exp(latencySpread * random.nextGaussian()));
+            outcome = random.nextDouble();
+            String path = request.url().encodedPath();
+            for (Map.Entry<String, String> response : responses.entrySet()) {
+                if (path.endsWith(response.getKey())) {
+                    body = response.getValue();
+                    break;
+                }
+            }
+        }
+
+        // Wait, unless the call is canceled or times out.
+        long end = System.nanoTime() + latency * 1000000L;
+        long left;
+        while ((left = end - System.nanoTime()) > 0) {
+            if (chain.call().isCanceled()) {
+                canceledCount.incrementAndGet();
+                throw new IOException("Canceled");
+            }
+            try {
+                Thread.sleep(Math.min(CANCEL_CHECK_MILLIS, left / 1000000L + 1));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (outcome < failureRate) {
+            throw new IOException("Fake connection failure");
+        }
+        boolean serverError = outcome < failureRate + serverErrorRate;
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(serverError ? 503 : 200)
+                .message(serverError ? "Service Unavailable" : "OK")
+                .body(ResponseBody.create(JSON, serverError ? DEFAULT_RESPONSE : body))
+                .build();
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of requests that were canceled while waiting.
+     */
+    int getCanceledCount() {
+        return canceledCount.get();
+    }
+}
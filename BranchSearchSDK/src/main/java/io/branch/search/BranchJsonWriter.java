@@ -0,0 +1,190 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * Writes a flat JSON object straight into a {@link BufferedSink}, encoding like
+ * {@link org.json.JSONObject#toString()} does, without intermediate strings or boxed values.
+ *
+ * Without a sink, nothing is written and the encoded size is counted only, so that the same
+ * code gives the content length and the content.
+ *
+ * Like {@link org.json.JSONObject#putOpt(String, Object)}, null strings and non finite
+ * numbers are skipped. Not thread safe: use one writer per request body.
+ */
+final class BranchJsonWriter {
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private BufferedSink sink;
+    private long size;
+    private boolean hasMembers;
+
+    /**
+     * Starts a new object.
+     * @param sink where to write it, or null to count its size only
+     */
+    void beginObject(@Nullable BufferedSink sink) throws IOException {
+        this.sink = sink;
+        this.size = 0;
+        this.hasMembers = false;
+        writeByte('{');
+    }
+
+    /**
+     * Ends the object.
+     * @return its encoded size, in bytes
+     */
+    long endObject() throws IOException {
+        writeByte('}');
+        sink = null;
+        return size;
+    }
+
+    /**
+     * Writes members that were already encoded.
+     * @param members UTF-8 encoded JSON members, without the enclosing braces. May be empty.
+     */
+    void members(@NonNull ByteString members) throws IOException {
+        if (members.size() == 0) return;
+        if (hasMembers) writeByte(',');
+        hasMembers = true;
+        size += members.size();
+        if (sink != null) sink.write(members);
+    }
+
+    void member(@NonNull String name, @Nullable String value) throws IOException {
+        if (value == null) return;
+        name(name);
+        string(value);
+    }
+
+    void member(@NonNull String name, long value) throws IOException {
+        name(name);
+        number(value);
+    }
+
+    void member(@NonNull String name, boolean value) throws IOException {
+        name(name);
+        ascii(value ? "true" : "false");
+    }
+
+    void member(@NonNull String name, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+        name(name);
+        long longValue = (long) value;
+        if (value == (double) longValue
+                && !(longValue == 0 && Double.doubleToRawLongBits(value) != 0)) {
+            number(longValue);
+        } else {
+            // Only fractional values allocate, like JSONObject does.
+            ascii(Double.toString(value));
+        }
+    }
+
+    private void name(@NonNull String name) throws IOException {
+        if (hasMembers) writeByte(',');
+        hasMembers = true;
+        string(name);
+        writeByte(':');
+    }
+
+    private void writeByte(int b) throws IOException {
+        size++;
+        if (sink != null) sink.writeByte(b);
+    }
+
+    private void ascii(@NonNull String value) throws IOException {
+        size += value.length();
+        if (sink != null) sink.writeUtf8(value);
+    }
+
+    private void number(long value) throws IOException {
+        size += decimalLength(value);
+        if (sink != null) sink.writeDecimalLong(value);
+    }
+
+    private static int decimalLength(long value) {
+        if (value == Long.MIN_VALUE) return 20;
+        int length = 1;
+        if (value < 0) {
+            length++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    // Same escaping as JSONStringer.
+    private void string(@NonNull String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '\t':
+                    escape('t');
+                    break;
+                case '\b':
+                    escape('b');
+                    break;
+                case '\n':
+                    escape('n');
+                    break;
+                case '\r':
+                    escape('r');
+                    break;
+                case '\f':
+                    escape('f');
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writeByte('\\');
+                        writeByte('u');
+                        writeByte('0');
+                        writeByte('0');
+                        writeByte(HEX[c >> 4]);
+                        writeByte(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        codePoint(Character.toCodePoint(c, value.charAt(++i)), 4);
+                    } else if (Character.isSurrogate(c)) {
+                        // A lone surrogate can't be encoded, like okio we write a '?'.
+                        writeByte('?');
+                    } else {
+                        codePoint(c, c < 0x800 ? 2 : 3);
+                    }
+                    break;
+            }
+        }
+        writeByte('"');
+    }
+
+    private void escape(char c) throws IOException {
+        writeByte('\\');
+        writeByte(c);
+    }
+
+    private void codePoint(int codePoint, int byteCount) throws IOException {
+        size += byteCount;
+        if (sink != null) sink.writeUtf8CodePoint(codePoint);
+    }
+}
@@ -0,0 +1,82 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations.
+ *
+ * Durations are recorded in microseconds into log-linear buckets: every power of two is split
+ * into 4 buckets, so that percentiles are known within 25%. Recording is a single atomic
+ * increment, so it can be done from any thread on the hot path. Reading copies the counts.
+ */
+class BranchLatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    static final int BUCKETS = SUB_BUCKETS * 62;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records a duration.
+     * @param nanos the duration, in nanoseconds, as measured with {@link System#nanoTime()}
+     */
+    void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos) / 1000));
+    }
+
+    /**
+     * @return a copy of the bucket counts.
+     */
+    @NonNull
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, SUB_BUCKETS * (exponent - 1) + sub);
+    }
+
+    // Returns the middle of the given bucket, in microseconds.
+    static double valueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + 1;
+        int sub = index % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - 2);
+        long upper = (long) (SUB_BUCKETS + sub + 1) << (exponent - 2);
+        return (lower + upper) / 2D;
+    }
+
+    /**
+     * Returns the given percentile of a snapshot.
+     * @param snapshot a snapshot, see {@link #snapshot()}
+     * @param percentile the percentile, between 0 and 1
+     * @return the percentile in milliseconds, or NaN if nothing was recorded.
+     */
+    static double getPercentileMillis(@NonNull long[] snapshot, float percentile) {
+        long total = getCount(snapshot);
+        if (total == 0) return Double.NaN;
+        long rank = (long) Math.ceil(Math.max(0F, Math.min(1F, percentile)) * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return valueOf(i) / 1000D;
+            }
+        }
+        return valueOf(snapshot.length - 1) / 1000D;
+    }
+
+    static long getCount(@NonNull long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) total += count;
+        return total;
+    }
+}
@@ -6,10 +6,13 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
+import android.util.JsonReader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * Class for representing a a deep link to content
  */
@@ -112,10 +115,9 @@ public class BranchLinkResult implements Parcelable {
      */
     public void registerClickEvent() {
         if (!TextUtils.isEmpty(click_tracking_url)) {
-            // Fire off an async click event
-            BranchSearch.getInstance()
-                    .getNetworkHandler(BranchSearch.Channel.SEARCH)
-                    .executeGet(click_tracking_url, null);
+            // Fire off an async click event. Clicks have their own pipeline, so that they
+            // never cancel each other nor slow down searches.
+            BranchSearch.getInstance().getClickTracker().track(click_tracking_url);
         }
     }
 
@@ -224,6 +226,64 @@ public class BranchLinkResult implements Parcelable {
         return link;
     }
 
+    /**
+     * Reads a link from a streaming response. The app information might come later in the
+     * stream, so it is not set here, see {@link #setAppInfo(String, String)}.
+     */
+    static BranchLinkResult createFromJsonReader(JsonReader reader) throws IOException {
+        BranchLinkResult link = new BranchLinkResult();
+        link.entity_id = "";
+        link.type = "";
+        link.score = Float.NaN;
+        link.name = "";
+        link.description = "";
+        link.image_url = "";
+        link.ranking_hint = "";
+        link.routing_mode = "";
+        link.uri_scheme = "";
+        link.web_link = "";
+        link.click_tracking_url = "";
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (LINK_ENTITY_ID_KEY.equals(key)) {
+                link.entity_id = Util.nextString(reader);
+            } else if (LINK_TYPE_KEY.equals(key)) {
+                link.type = Util.nextString(reader);
+            } else if (LINK_SCORE_KEY.equals(key)) {
+                link.score = (float) Util.nextDouble(reader, Double.NaN);
+            } else if (LINK_NAME_KEY.equals(key)) {
+                link.name = Util.nextString(reader);
+            } else if (LINK_DESC_KEY.equals(key)) {
+                link.description = Util.nextString(reader);
+            } else if (LINK_IMAGE_URL_KEY.equals(key)) {
+                link.image_url = Util.nextString(reader);
+            } else if (LINK_RANKING_HINT_KEY.equals(key)) {
+                link.ranking_hint = Util.nextString(reader);
+            } else if (LINK_METADATA_KEY.equals(key)) {
+                link.metadata = Util.nextJSONObject(reader);
+            } else if (LINK_ROUTING_MODE_KEY.equals(key)) {
+                link.routing_mode = Util.nextString(reader);
+            } else if (LINK_URI_SCHEME_KEY.equals(key)) {
+                link.uri_scheme = Util.nextString(reader);
+            } else if (LINK_WEB_LINK_KEY.equals(key)) {
+                link.web_link = Util.nextString(reader);
+            } else if (LINK_TRACKING_KEY.equals(key)) {
+                link.click_tracking_url = Util.nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return link;
+    }
+
+    void setAppInfo(String app_store_id, String icon_url) {
+        this.destination_store_id = app_store_id;
+        this.app_icon_url = icon_url;
+    }
+
     @Override
     public int describeContents() {
         return 0;
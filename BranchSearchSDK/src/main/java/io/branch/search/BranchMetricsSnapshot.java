@@ -0,0 +1,377 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A point in time view of the network metrics of the SDK, see
+ * {@link BranchSearch#getMetricsSnapshot()}.
+ *
+ * Metrics are recorded per {@link BranchSearch.Channel} since the SDK was initialized.
+ * Latencies are measured with a monotonic clock and kept in histograms, so percentiles are
+ * approximate (within 25%). A percentile is NaN when nothing was recorded yet.
+ */
+public class BranchMetricsSnapshot {
+
+    /**
+     * State of the circuit breaker of a channel, see
+     * {@link BranchConfiguration#setCircuitBreaker(BranchSearch.Channel, float, long)}.
+     */
+    public enum CircuitState {
+        /** Requests are sent normally. */
+        CLOSED,
+
+        /** Requests fail right away with {@link BranchSearchError.ERR_CODE#CIRCUIT_OPEN_ERR}.
+         * Host apps may want to hide their search UI in this state. */
+        OPEN,
+
+        /** Recovering: the next request is sent to probe the service. */
+        HALF_OPEN
+    }
+
+    /**
+     * Scheduling class of network requests. When all threads are busy, requests of a higher
+     * class go first, but requests of lower classes that waited long enough still get a turn.
+     */
+    public enum PriorityClass {
+        /** Requests of {@link BranchSearch#query(BranchSearchRequest, IBranchSearchEvents)}. */
+        SEARCH,
+
+        /** Requests of {@link BranchSearch#autoSuggest(BranchSearchRequest, IBranchQueryResults)}. */
+        AUTOSUGGEST,
+
+        /** Requests of {@link BranchSearch#queryHint(IBranchQueryResults)}. */
+        QUERY_HINT,
+
+        /** Click tracking, service checks and prefetches, which nobody is waiting for. */
+        BACKGROUND
+    }
+
+    /**
+     * Metrics of a single {@link BranchSearch.Channel}.
+     */
+    public static class ChannelMetrics {
+        private final long[] endToEnd;
+        private final long[] queueWait;
+        private final long[] parse;
+        private final long resultCount;
+        private final long errorCount;
+        private final long cancelCount;
+        private final long retryCount;
+        private final int sentCount;
+        private final int coalescedCount;
+        private final int hedgedCount;
+        private final int hedgeWinCount;
+        private final CircuitState circuitState;
+        private final int circuitRejectedCount;
+
+        ChannelMetrics(@NonNull URLConnectionNetworkHandler handler) {
+            BranchChannelMetrics metrics = handler.getMetrics();
+            this.endToEnd = metrics.endToEnd.snapshot();
+            this.queueWait = metrics.queueWait.snapshot();
+            this.parse = metrics.parse.snapshot();
+            this.resultCount = metrics.resultCount.get();
+            this.errorCount = metrics.errorCount.get();
+            this.cancelCount = metrics.cancelCount.get();
+            this.retryCount = metrics.retryCount.get();
+            this.sentCount = handler.getSentCount();
+            this.coalescedCount = handler.getCoalescedCount();
+            this.hedgedCount = handler.getHedgeCount();
+            this.hedgeWinCount = handler.getHedgeWinCount();
+            this.circuitState = handler.getCircuitBreaker().getState();
+            this.circuitRejectedCount = handler.getCircuitBreaker().getRejectedCount();
+        }
+
+        /**
+         * End-to-end latency, from the moment a request is scheduled to the moment its
+         * callback runs.
+         * @param percentile the percentile, between 0 and 1, for example 0.99
+         * @return the latency in milliseconds
+         */
+        public double getLatencyMillis(float percentile) {
+            return BranchLatencyHistogram.getPercentileMillis(endToEnd, percentile);
+        }
+
+        /**
+         * Time spent by requests waiting for a network thread.
+         * @param percentile the percentile, between 0 and 1, for example 0.99
+         * @return the queue wait in milliseconds
+         */
+        public double getQueueWaitMillis(float percentile) {
+            return BranchLatencyHistogram.getPercentileMillis(queueWait, percentile);
+        }
+
+        /**
+         * Time spent reading and parsing successful responses.
+         * @param percentile the percentile, between 0 and 1, for example 0.99
+         * @return the parse time in milliseconds
+         */
+        public double getParseMillis(float percentile) {
+            return BranchLatencyHistogram.getPercentileMillis(parse, percentile);
+        }
+
+        /**
+         * @return the number of requests that were answered with a result.
+         */
+        public long getResultCount() {
+            return resultCount;
+        }
+
+        /**
+         * @return the number of requests that were answered with an error.
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return the number of requests that were canceled, or replaced by a newer request.
+         */
+        public long getCancelCount() {
+            return cancelCount;
+        }
+
+        /**
+         * @return the number of times a failed request was retried, see
+         * {@link BranchConfiguration#setRetries(BranchSearch.Channel, int)}.
+         */
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * @return the ratio of errors to finished requests, or 0 if none finished.
+         */
+        public float getErrorRate() {
+            long total = resultCount + errorCount + cancelCount;
+            return total == 0 ? 0F : (float) errorCount / total;
+        }
+
+        /**
+         * @return the ratio of cancellations to finished requests, or 0 if none finished.
+         */
+        public float getCancelRate() {
+            long total = resultCount + errorCount + cancelCount;
+            return total == 0 ? 0F : (float) cancelCount / total;
+        }
+
+        /**
+         * @return the number of requests that were sent, see
+         * {@link BranchSearch#getSentRequestCount(BranchSearch.Channel)}.
+         */
+        public int getSentCount() {
+            return sentCount;
+        }
+
+        /**
+         * @return the number of coalesced requests, see
+         * {@link BranchSearch#getCoalescedRequestCount(BranchSearch.Channel)}.
+         */
+        public int getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * @return the number of hedged requests, see
+         * {@link BranchSearch#getHedgedRequestCount(BranchSearch.Channel)}.
+         */
+        public int getHedgedCount() {
+            return hedgedCount;
+        }
+
+        /**
+         * @return the number of hedged requests won by the duplicate, see
+         * {@link BranchSearch#getHedgeWinCount(BranchSearch.Channel)}.
+         */
+        public int getHedgeWinCount() {
+            return hedgeWinCount;
+        }
+
+        /**
+         * @return the state of the circuit breaker of this channel.
+         */
+        @NonNull
+        public CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        /**
+         * @return the number of requests that failed right away with
+         * {@link BranchSearchError.ERR_CODE#CIRCUIT_OPEN_ERR}.
+         */
+        public int getCircuitRejectedCount() {
+            return circuitRejectedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "results:" + resultCount
+                    + " errors:" + errorCount
+                    + " cancels:" + cancelCount
+                    + " retries:" + retryCount
+                    + " circuit:" + circuitState
+                    + " p50:" + getLatencyMillis(0.5F)
+                    + " p90:" + getLatencyMillis(0.9F)
+                    + " p99:" + getLatencyMillis(0.99F)
+                    + " queue p99:" + getQueueWaitMillis(0.99F)
+                    + " parse p99:" + getParseMillis(0.99F);
+        }
+    }
+
+    private final ChannelMetrics[] channels;
+    private final long[][] classQueueWait;
+    private final int reusedConnectionCount;
+    private final int newConnectionCount;
+    private final int searchCacheHitCount;
+    private final int searchCacheMissCount;
+    private final int autoSuggestCallsAvoided;
+    private final int clickEventsSent;
+    private final int clickEventsFailed;
+    private final int clickEventsPending;
+    private final int clickEventsDropped;
+    private final int prefetchCount;
+    private final int prefetchHitCount;
+    private final long prefetchWastedBytes;
+
+    BranchMetricsSnapshot(@NonNull BranchSearch search) {
+        BranchSearch.Channel[] values = BranchSearch.Channel.values();
+        this.channels = new ChannelMetrics[values.length];
+        for (BranchSearch.Channel channel : values) {
+            channels[channel.ordinal()] = new ChannelMetrics(search.getNetworkHandler(channel));
+        }
+        PriorityClass[] classes = PriorityClass.values();
+        this.classQueueWait = new long[classes.length][];
+        for (PriorityClass priorityClass : classes) {
+            classQueueWait[priorityClass.ordinal()]
+                    = BranchExecutor.getQueueWait(priorityClass).snapshot();
+        }
+        this.reusedConnectionCount = search.getReusedConnectionCount();
+        this.newConnectionCount = search.getNewConnectionCount();
+        this.searchCacheHitCount = search.getSearchCache().getHitCount();
+        this.searchCacheMissCount = search.getSearchCache().getMissCount();
+        this.autoSuggestCallsAvoided = search.getAutoSuggestCache().getNetworkCallsAvoided();
+        this.clickEventsSent = search.getClickTracker().getSentCount();
+        this.clickEventsFailed = search.getClickTracker().getFailedCount();
+        this.clickEventsPending = search.getClickTracker().getPendingCount();
+        this.clickEventsDropped = search.getClickTracker().getDroppedCount();
+        this.prefetchCount = search.getPrefetcher().getPrefetchCount();
+        this.prefetchHitCount = search.getPrefetcher().getHitCount();
+        this.prefetchWastedBytes = search.getPrefetcher().getWastedBytes();
+    }
+
+    /**
+     * @param channel the channel
+     * @return the metrics of the given channel
+     */
+    @NonNull
+    public ChannelMetrics getChannelMetrics(@NonNull BranchSearch.Channel channel) {
+        return channels[channel.ordinal()];
+    }
+
+    /**
+     * Time that requests of the given class spent waiting for a thread, since the process
+     * started. For example, the SEARCH wait should not grow with the BACKGROUND traffic.
+     * @param priorityClass the class
+     * @param percentile the percentile, between 0 and 1, for example 0.99
+     * @return the queue wait in milliseconds
+     */
+    public double getQueueWaitMillis(@NonNull PriorityClass priorityClass, float percentile) {
+        return BranchLatencyHistogram.getPercentileMillis(
+                classQueueWait[priorityClass.ordinal()], percentile);
+    }
+
+    /**
+     * @param priorityClass the class
+     * @return the number of requests of the given class that were run.
+     */
+    public long getQueueWaitCount(@NonNull PriorityClass priorityClass) {
+        return BranchLatencyHistogram.getCount(classQueueWait[priorityClass.ordinal()]);
+    }
+
+    /**
+     * @return the number of requests that reused a pooled connection.
+     */
+    public int getReusedConnectionCount() {
+        return reusedConnectionCount;
+    }
+
+    /**
+     * @return the number of requests that had to open a new connection.
+     */
+    public int getNewConnectionCount() {
+        return newConnectionCount;
+    }
+
+    /**
+     * @return the number of searches answered by the {@link BranchSearchCache}.
+     */
+    public int getSearchCacheHitCount() {
+        return searchCacheHitCount;
+    }
+
+    /**
+     * @return the number of searches not found in the {@link BranchSearchCache}.
+     */
+    public int getSearchCacheMissCount() {
+        return searchCacheMissCount;
+    }
+
+    /**
+     * @return the number of auto-suggest requests answered by the {@link BranchAutoSuggestCache}.
+     */
+    public int getAutoSuggestCallsAvoided() {
+        return autoSuggestCallsAvoided;
+    }
+
+    /**
+     * @return the number of click events that reached the server, see
+     * {@link BranchLinkResult#registerClickEvent()}.
+     */
+    public int getClickEventsSent() {
+        return clickEventsSent;
+    }
+
+    /**
+     * @return the number of failed attempts to send click events. Failed events are retried.
+     */
+    public int getClickEventsFailed() {
+        return clickEventsFailed;
+    }
+
+    /**
+     * @return the number of click events waiting to be sent, including the ones left by
+     * a previous session.
+     */
+    public int getClickEventsPending() {
+        return clickEventsPending;
+    }
+
+    /**
+     * @return the number of click events that were dropped because too many were waiting.
+     */
+    public int getClickEventsDropped() {
+        return clickEventsDropped;
+    }
+
+    /**
+     * @return the number of search results prefetched for auto-suggestions, see
+     * {@link BranchConfiguration#setAutoSuggestPrefetch(int, long)}.
+     */
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * @return the number of searches answered with a prefetched result. Divided by
+     * {@link #getPrefetchCount()}, this is the prefetch hit rate.
+     */
+    public int getPrefetchHitCount() {
+        return prefetchHitCount;
+    }
+
+    /**
+     * @return the number of response bytes of prefetched results that were not used so far.
+     */
+    public long getPrefetchWastedBytes() {
+        return prefetchWastedBytes;
+    }
+}
@@ -0,0 +1,58 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import okhttp3.Headers;
+
+/**
+ * A successful response that was already parsed by an {@link IURLConnectionParser}.
+ * Like {@link BranchSearchError}, this is delivered through
+ * {@link IURLConnectionEvents#onResult(JSONObject)}, but the JSON tree itself is empty.
+ */
+class BranchParsedResponse extends JSONObject {
+
+    /**
+     * The result of a 304 Not Modified response to a conditional request, which has no body
+     * to parse.
+     */
+    static final Object NOT_MODIFIED = new Object();
+
+    private final Object result;
+    private final Headers headers;
+    private final long bodySize;
+
+    BranchParsedResponse(@NonNull Object result, @NonNull Headers headers) {
+        this(result, headers, 0);
+    }
+
+    BranchParsedResponse(@NonNull Object result, @NonNull Headers headers, long bodySize) {
+        this.result = result;
+        this.headers = headers;
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * @return the object returned by {@link IURLConnectionParser#parse(android.util.JsonReader)}.
+     */
+    @NonNull
+    Object getResult() {
+        return result;
+    }
+
+    /**
+     * @return the response headers.
+     */
+    @NonNull
+    Headers getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the number of body bytes that were read, after decompression.
+     */
+    long getBodySize() {
+        return bodySize;
+    }
+}
@@ -0,0 +1,89 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent cache of query hints, stored in the app private SharedPreferences.
+ *
+ * Hints are stored along with the time they were fetched, and a key made of the Branch key,
+ * country and locale that they were requested for. Hints older than the configured TTL are
+ * still returned, but are not {@link #isFresh() fresh} and should be revalidated.
+ * See {@link BranchConfiguration#setQueryHintCacheTTL(long)}.
+ */
+class BranchQueryHintCache {
+    private static final String PREFS_NAME = "io.branch.search.queryhint";
+    private static final String KEY_CACHE_KEY = "key";
+    private static final String KEY_RESULTS = "results";
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    private final SharedPreferences preferences;
+    private final long ttlMillis;
+
+    BranchQueryHintCache(@NonNull Context context, long ttlMillis) {
+        // Getting the preferences starts loading them in the background, so they should be
+        // ready by the time the first query hint is requested.
+        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the cached hints for the given configuration, fresh or stale.
+     * @return the hints, or null if there are none.
+     */
+    @Nullable
+    List<String> get(@NonNull BranchConfiguration configuration) {
+        if (ttlMillis <= 0) return null;
+        if (!createKey(configuration).equals(preferences.getString(KEY_CACHE_KEY, null))) {
+            return null;
+        }
+        String json = preferences.getString(KEY_RESULTS, null);
+        if (json == null) return null;
+        try {
+            JSONArray array = new JSONArray(json);
+            List<String> results = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                results.add(array.getString(i));
+            }
+            return results;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the hints returned by {@link #get(BranchConfiguration)} do not need
+     * to be revalidated.
+     */
+    boolean isFresh() {
+        long age = System.currentTimeMillis() - preferences.getLong(KEY_TIMESTAMP, 0);
+        return age >= 0 && age < ttlMillis;
+    }
+
+    /**
+     * Stores the hints for the given configuration. Writes happen in the background.
+     */
+    void put(@NonNull BranchConfiguration configuration, @NonNull List<String> results) {
+        if (ttlMillis <= 0) return;
+        preferences.edit()
+                .putString(KEY_CACHE_KEY, createKey(configuration))
+                .putString(KEY_RESULTS, new JSONArray(results).toString())
+                .putLong(KEY_TIMESTAMP, System.currentTimeMillis())
+                .apply();
+    }
+
+    @NonNull
+    private static String createKey(@NonNull BranchConfiguration configuration) {
+        return configuration.getBranchKey()
+                + '|' + configuration.getCountryCode()
+                + '|' + configuration.getLocale();
+    }
+}
@@ -1,11 +1,14 @@
 package io.branch.search;
 
 import android.os.Parcel;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,6 +27,12 @@ public class BranchQueryResult {
         return queryResults;
     }
 
+    static BranchQueryResult createFromList(List<String> queryResults) {
+        BranchQueryResult result = new BranchQueryResult();
+        result.queryResults = new ArrayList<>(queryResults);
+        return result;
+    }
+
     static BranchQueryResult createFromJson(JSONObject jsonObject) {
         BranchQueryResult result = new BranchQueryResult();
         result.queryResults = new ArrayList<>();
@@ -41,6 +50,32 @@ public class BranchQueryResult {
         return result;
     }
 
+    static BranchQueryResult createFromJsonReader(JsonReader reader) throws IOException {
+        BranchQueryResult result = new BranchQueryResult();
+        result.queryResults = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (RESULTS_KEY.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonToken token = reader.peek();
+                    if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                        result.queryResults.add(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return result;
+    }
+
     private BranchQueryResult(Parcel in) {
         queryResults = new ArrayList<>();
 
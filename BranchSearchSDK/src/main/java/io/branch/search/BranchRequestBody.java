@@ -0,0 +1,52 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A {@link RequestBody} that streams a {@link BranchRequestPayload} into the connection,
+ * instead of building a JSON string and copying it.
+ *
+ * The content length is found by encoding once without writing anything. Each request
+ * (primary or hedge) has its own body, but a retry writes the same body again.
+ */
+class BranchRequestBody extends RequestBody {
+    private final BranchRequestPayload payload;
+    private final long lastRtt;
+    private final BranchJsonWriter writer = new BranchJsonWriter();
+    private long contentLength = -1;
+
+    /**
+     * @param payload the payload
+     * @param lastRtt the round trip time of the last request to report, or -1
+     */
+    BranchRequestBody(@NonNull BranchRequestPayload payload, long lastRtt) {
+        this.payload = payload;
+        this.lastRtt = lastRtt;
+    }
+
+    @Nullable
+    @Override
+    public MediaType contentType() {
+        return URLConnectionTask.POST_JSON;
+    }
+
+    @Override
+    public synchronized long contentLength() throws IOException {
+        if (contentLength < 0) {
+            contentLength = payload.writeTo(writer, null, lastRtt);
+        }
+        return contentLength;
+    }
+
+    @Override
+    public synchronized void writeTo(@NonNull BufferedSink sink) throws IOException {
+        payload.writeTo(writer, sink, lastRtt);
+    }
+}
@@ -0,0 +1,80 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import okio.BufferedSink;
+
+/**
+ * A request payload, made of the per-request values of a {@link BranchDiscoveryRequest}, and
+ * of the {@link BranchStaticPayload} values that were encoded once for all requests.
+ *
+ * Requests send it with {@link BranchRequestBody}, which streams the request fields into the
+ * connection through {@link #writeTo(BranchJsonWriter, BufferedSink, long)}, without building
+ * a {@link JSONObject}. Use {@link #toJson()} where a JSONObject is needed, e.g. for tests and
+ * logs. Per-request values must not use the keys of static values.
+ *
+ * The request must not be modified once its payload was created.
+ */
+class BranchRequestPayload {
+    private static final String KEY_LAST_RTT = "lr_rtt";
+
+    private final BranchStaticPayload staticPayload;
+    private final BranchDiscoveryRequest<?> request;
+    private final long timestamp;
+
+    BranchRequestPayload(@NonNull BranchDiscoveryRequest<?> request,
+                         @NonNull BranchStaticPayload staticPayload) {
+        this.request = request;
+        this.staticPayload = staticPayload;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Encodes the payload.
+     * @param writer a writer
+     * @param sink where to write, or null to count the encoded size only
+     * @param lastRtt the round trip time of the last request to report, or -1
+     * @return the encoded size, in bytes
+     */
+    long writeTo(@NonNull BranchJsonWriter writer, @Nullable BufferedSink sink, long lastRtt)
+            throws IOException {
+        writer.beginObject(sink);
+        writer.members(staticPayload.getEncodedMembers());
+        request.writeTo(writer, timestamp);
+        if (lastRtt >= 0) {
+            writer.member(KEY_LAST_RTT, lastRtt);
+        }
+        return writer.endObject();
+    }
+
+    /**
+     * @return a new JSONObject with all the values, in the order they are streamed.
+     */
+    @NonNull
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONObject staticValues = staticPayload.getJson();
+            Iterator<String> keys = staticValues.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                json.put(key, staticValues.get(key));
+            }
+            request.convertToJson(json);
+            json.put(BranchDiscoveryRequest.JSONKey.Timestamp.toString(), timestamp);
+        } catch (JSONException ignore) {}
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
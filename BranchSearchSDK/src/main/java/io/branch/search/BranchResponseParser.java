@@ -1,15 +1,25 @@
 package io.branch.search;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by sojanpr on 3/16/18.
  * <p>
  * Class for parsing a Branch search response
  * </p>
+ * <p>
+ * Responses can be parsed from a JSONObject tree, or straight from the response stream with
+ * {@link #parse(BranchSearchRequest, JsonReader)}, which builds the result models in one pass
+ * without holding the whole payload in memory.
+ * </p>
  */
 
 class BranchResponseParser {
@@ -77,4 +87,96 @@ class BranchResponseParser {
             }
         }
     }
+
+    static BranchSearchResult parse(BranchSearchRequest query, JsonReader reader) throws IOException {
+        String corrected_query = null;
+        boolean success = false;
+        List<BranchAppResult> results = null;
+
+        // Keys can come in any order, so keep the results until we know whether we succeeded.
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (CORRECTED_QUERY_KEY.equals(key) && reader.peek() != JsonToken.NULL) {
+                corrected_query = Util.nextString(reader);
+            } else if (SUCCESS_KEY.equals(key) && reader.peek() == JsonToken.BOOLEAN) {
+                success = reader.nextBoolean();
+            } else if (RESULTS_KEY.equals(key) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                results = parseResultArray(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        BranchSearchResult branchSearchResult = new BranchSearchResult(query, corrected_query);
+        if (success && results != null) {
+            branchSearchResult.results.addAll(results);
+        }
+        return branchSearchResult;
+    }
+
+    private static List<BranchAppResult> parseResultArray(JsonReader reader) throws IOException {
+        List<BranchAppResult> results = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                results.add(parseAppResult(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return results;
+    }
+
+    private static BranchAppResult parseAppResult(JsonReader reader) throws IOException {
+        String name = "";
+        String store_id = "";
+        String icon_url = "";
+        String rankingHint = "";
+        float score = 0;
+        BranchLinkResult link = null;
+        ArrayList<BranchLinkResult> deepLinks = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (APP_NAME_KEY.equals(key)) {
+                name = Util.nextString(reader);
+            } else if (APP_STORE_ID_KEY.equals(key)) {
+                store_id = Util.nextString(reader);
+            } else if (APP_ICON_URL_KEY.equals(key)) {
+                icon_url = Util.nextString(reader);
+            } else if (RANKING_HINT_KEY.equals(key)) {
+                rankingHint = Util.nextString(reader);
+            } else if (APP_SCORE_KEY.equals(key)) {
+                score = (float) Util.nextDouble(reader, 0.0);
+            } else if (APP_SEARCH_DEEP_LINK_KEY.equals(key) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                link = BranchLinkResult.createFromJsonReader(reader);
+            } else if (APP_DEEP_LINKS_KEY.equals(key) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        deepLinks.add(BranchLinkResult.createFromJsonReader(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Now that we know the app, complete the links.
+        if (link != null) {
+            link.setAppInfo(store_id, icon_url);
+        }
+        for (BranchLinkResult deepLink : deepLinks) {
+            deepLink.setAppInfo(store_id, icon_url);
+        }
+        return new BranchAppResult(store_id, name, icon_url, link, rankingHint, score, deepLinks);
+    }
 }
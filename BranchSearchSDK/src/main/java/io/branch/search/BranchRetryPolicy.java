@@ -0,0 +1,60 @@
+package io.branch.search;
+
+import java.util.Random;
+
+/**
+ * Decides whether a failed request should be retried, and when.
+ *
+ * Requests that failed with a server error (5xx) or a transport error are retried up to a
+ * maximum number of times, after an exponential backoff with full jitter, so that devices
+ * that failed together don't retry together. A retry is only made if it can start within the
+ * latency budget of the request, which is its timeout.
+ *
+ * Retries are also limited by a token bucket: each retry takes a token, and each successful
+ * request gives back a fraction of one. When the server is browning out, requests mostly fail,
+ * the bucket empties and retries stop, so that we don't make things worse. At most one retry
+ * every 1 / {@link #TOKENS_PER_SUCCESS} successful requests is made in the long run.
+ *
+ * This is shared by all the requests of a {@link URLConnectionNetworkHandler}, and safe to use
+ * from any thread.
+ */
+class BranchRetryPolicy {
+    private static final long BASE_DELAY_MILLIS = 100L;
+    private static final long MAX_DELAY_MILLIS = 2000L;
+    private static final float MAX_TOKENS = 10F;
+    private static final float TOKENS_PER_SUCCESS = 0.1F;
+
+    private final Random random = new Random();
+    private int maxRetries;
+    private float tokens = MAX_TOKENS;
+
+    /**
+     * @param maxRetries the maximum number of retries of a request. 0 disables retries.
+     */
+    synchronized void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Returns the delay after which a failed request should be retried, and takes a token
+     * if it should.
+     * @param retries the number of times the request was retried already
+     * @param remainingMillis the time left in the latency budget of the request
+     * @return the delay in milliseconds, or -1 if the request should not be retried
+     */
+    synchronized long getRetryDelay(int retries, long remainingMillis) {
+        if (retries >= maxRetries || tokens < 1) return -1;
+        long cap = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(retries, 16));
+        long delay = (long) (random.nextFloat() * cap);
+        if (delay >= remainingMillis) return -1;
+        tokens -= 1;
+        return delay;
+    }
+
+    /**
+     * Records a successful request, which gives back part of a token.
+     */
+    synchronized void onSuccess() {
+        tokens = Math.min(MAX_TOKENS, tokens + TOKENS_PER_SUCCESS);
+    }
+}
@@ -1,16 +1,21 @@
 package io.branch.search;
 
+import android.content.ComponentCallbacks;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.google.android.gms.ads.identifier.AdvertisingIdClient;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Main entry class for Branch Discovery. This class need to initialized before accessing any Branch
@@ -20,21 +25,47 @@ import java.lang.ref.WeakReference;
  * your app has location permission granted.
  */
 public class BranchSearch {
-    // Each protocol that we handle has to have its own Network channel
-    enum Channel { SEARCH, AUTOSUGGEST, QUERYHINT }
+    /**
+     * Network channels. Each protocol that we handle has its own channel, and a new request
+     * on a channel cancels the previous one.
+     */
+    public enum Channel {
+        /**
+         * Channel used by {@link #query(BranchSearchRequest, IBranchSearchEvents)} and
+         * {@link #queryBatch(List, IBranchBatchSearchEvents)}.
+         */
+        SEARCH,
+
+        /** Channel used by {@link #autoSuggest(BranchSearchRequest, IBranchQueryResults)}. */
+        AUTOSUGGEST,
+
+        /** Channel used by {@link #queryHint(IBranchQueryResults)}. */
+        QUERYHINT
+    }
 
     private static final String TAG = "BranchSearch";
     private static BranchSearch thisInstance;
+    private static final AtomicBoolean isWatchingConfigurationChanges = new AtomicBoolean();
 
     @VisibleForTesting
     URLConnectionNetworkHandler[] networkHandlers
             = new URLConnectionNetworkHandler[Channel.values().length];
 
-    private BranchConfiguration branchConfiguration;
+    private final BranchConfiguration branchConfiguration;
+    private final BranchSearchCache searchCache;
+    private final BranchAutoSuggestCache autoSuggestCache;
+    private BranchQueryHintCache queryHintCache;
+    private BranchClickTracker clickTracker;
+    @VisibleForTesting BranchSearchPrefetcher prefetcher;
 
-
-    // Private Constructor.
-    private BranchSearch() {
+    // Private Constructor. The caches exist as soon as the instance does.
+    private BranchSearch(@NonNull Context context, @Nullable BranchConfiguration config) {
+        this.branchConfiguration = (config == null ? new BranchConfiguration() : config);
+        this.branchConfiguration.setDefaults(context);
+        this.searchCache = new BranchSearchCache(branchConfiguration.getSearchCacheSize(),
+                branchConfiguration.getSearchCacheTTL());
+        this.autoSuggestCache = new BranchAutoSuggestCache(
+                branchConfiguration.getAutoSuggestCacheTTL());
     }
 
     /**
@@ -53,11 +84,12 @@ public class BranchSearch {
      * @return this BranchSearch instance.
      */
     public static BranchSearch init(@NonNull Context context, @NonNull BranchConfiguration config) {
-        thisInstance = new BranchSearch();
-        thisInstance.initialize(context, config);
+        thisInstance = new BranchSearch(context, config);
+        thisInstance.initialize(context);
 
-        // Initialize Device Information that doesn't change
+        // Initialize Device Information that doesn't change, except on configuration changes.
         BranchDeviceInfo.init(context);
+        watchConfigurationChanges(context.getApplicationContext());
 
         // Ensure that there is a valid key
         if (!thisInstance.branchConfiguration.hasValidKey()) {
@@ -68,6 +100,21 @@ public class BranchSearch {
         return thisInstance;
     }
 
+    // Refreshes the device info, like the locale, when the device configuration changes.
+    private static void watchConfigurationChanges(@NonNull final Context appContext) {
+        if (isWatchingConfigurationChanges.getAndSet(true)) return;
+        appContext.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                BranchDeviceInfo.init(appContext);
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        });
+    }
+
     /**
      * Get the BranchSearch Instance.
      * @return this BranchSearch instance.
@@ -94,8 +141,25 @@ public class BranchSearch {
         return BranchSearchInterface.Search(request, branchConfiguration, callback);
     }
 
+    /**
+     * Query for the results of several requests at once, for example to show results for the
+     * top query hints. Unlike {@link #query(BranchSearchRequest, IBranchSearchEvents)}, the
+     * requests run in parallel and do not cancel each other; a new batch cancels the previous
+     * one though.
+     * @param requests {@link BranchSearchRequest} requests
+     * @param callback {@link IBranchBatchSearchEvents} Callback to receive the result of each
+     *                 request, once all of them are answered
+     * @return true if the requests were posted
+     */
+    public boolean queryBatch(@NonNull List<BranchSearchRequest> requests,
+                              IBranchBatchSearchEvents callback) {
+        return BranchSearchInterface.SearchBatch(requests, branchConfiguration, callback);
+    }
+
     /**
      * Retrieve a list of suggestions on kinds of things one might request.
+     * Hints are persisted, so the last known hints are delivered right away and refreshed in
+     * the background when needed. See {@link BranchConfiguration#setQueryHintCacheTTL(long)}.
      * @param callback {@link IBranchQueryResults} Callback to receive results.
      * @return true if the request was posted.
      */
@@ -114,21 +178,174 @@ public class BranchSearch {
         return BranchSearchInterface.AutoSuggest(request, branchConfiguration, callback);
     }
 
+    /**
+     * Open a connection to the Branch Discovery servers and keep it ready in the background,
+     * so that the next {@link #query(BranchSearchRequest, IBranchSearchEvents)} or
+     * {@link #autoSuggest(BranchSearchRequest, IBranchQueryResults)} reuses it instead of
+     * paying for connection setup. This is done automatically on initialization, but it is
+     * worth calling when the user is about to search, for example when a search box gets
+     * focus, because idle connections are eventually closed. This does nothing when requests
+     * do not go to the network.
+     */
+    public void prewarm() {
+        if (branchConfiguration.getTransport() != BranchTransport.NETWORK) return;
+        URLConnectionTask.prewarm(branchConfiguration.getUrl());
+    }
+
+    /**
+     * Get the number of requests that reused a pooled connection.
+     * @return the number of requests that reused a connection
+     */
+    public int getReusedConnectionCount() {
+        return URLConnectionTask.getReusedConnectionCount();
+    }
+
+    /**
+     * Get the number of requests that had to open a new connection.
+     * @return the number of requests that opened a connection
+     */
+    public int getNewConnectionCount() {
+        return URLConnectionTask.getNewConnectionCount();
+    }
+
+    /**
+     * Get a snapshot of the network metrics: latency percentiles, error and cancel rates for
+     * each channel, along with connection and cache counts. This only reads atomic and volatile
+     * counters, without taking the locks of the request path, so it can be called at any time.
+     * @return a {@link BranchMetricsSnapshot}
+     */
+    @NonNull
+    public BranchMetricsSnapshot getMetricsSnapshot() {
+        return new BranchMetricsSnapshot(this);
+    }
+
+    // Package Private
+    BranchClickTracker getClickTracker() {
+        return this.clickTracker;
+    }
+
+    // When threads are busy, what the user is typing goes first, see BranchExecutor.
+    private static BranchMetricsSnapshot.PriorityClass getPriorityClass(Channel channel) {
+        switch (channel) {
+            case AUTOSUGGEST:
+                return BranchMetricsSnapshot.PriorityClass.AUTOSUGGEST;
+            case QUERYHINT:
+                return BranchMetricsSnapshot.PriorityClass.QUERY_HINT;
+            default:
+                return BranchMetricsSnapshot.PriorityClass.SEARCH;
+        }
+    }
+
     // Package Private
     URLConnectionNetworkHandler getNetworkHandler(Channel channel) {
         return this.networkHandlers[channel.ordinal()];
     }
 
-    private void initialize(@NonNull Context context, final BranchConfiguration config) {
+    private void initialize(@NonNull Context context) {
         new getGAIDTask(context).execute();
+        BranchServiceEnabledCache.getInstance().attach(context);
 
         // We need a network handler for each protocol.
+        BranchExecutor.setListener(branchConfiguration.getInstrumentationListener());
+
         for (Channel channel : Channel.values()) {
-            this.networkHandlers[channel.ordinal()] = URLConnectionNetworkHandler.initialize();
+            URLConnectionNetworkHandler handler = URLConnectionNetworkHandler.initialize();
+            handler.setCoalescing(branchConfiguration.getCoalescingWindow(channel),
+                    branchConfiguration.isCoalescingAdaptive(channel));
+            handler.setHedging(branchConfiguration.getHedgePercentile(channel),
+                    branchConfiguration.getHedgeBudget(channel));
+            handler.setTimeout(branchConfiguration.getTimeout(channel),
+                    branchConfiguration.isTimeoutAdaptive(channel));
+            handler.setRetries(branchConfiguration.getRetries(channel));
+            handler.setCircuitBreaker(branchConfiguration.getCircuitFailureRate(channel),
+                    branchConfiguration.getCircuitOpenMillis(channel));
+            handler.setCallbackExecutor(branchConfiguration.getCallbackExecutor());
+            handler.setPriorityClass(getPriorityClass(channel));
+            handler.setTransport(branchConfiguration.getTransport());
+            this.networkHandlers[channel.ordinal()] = handler;
         }
 
-        this.branchConfiguration = (config == null ? new BranchConfiguration() : config);
-        this.branchConfiguration.setDefaults(context);
+        BranchSearchInterface.sRawHandler.setTransport(branchConfiguration.getTransport());
+
+        // Open a connection now, so that the first query does not pay for it.
+        prewarm();
+
+        this.queryHintCache = new BranchQueryHintCache(context.getApplicationContext(),
+                branchConfiguration.getQueryHintCacheTTL());
+        this.prefetcher = new BranchSearchPrefetcher(context);
+
+        // Send the click events that a previous session could not send.
+        this.clickTracker = BranchClickTracker.getInstance(context);
+        this.clickTracker.setTransport(branchConfiguration.getTransport());
+        this.clickTracker.replay();
+    }
+
+    /**
+     * Get the cache of search results, which can be inspected for hit and miss counts.
+     * @return the {@link BranchSearchCache}
+     */
+    @NonNull
+    public BranchSearchCache getSearchCache() {
+        return searchCache;
+    }
+
+    /**
+     * Get the cache of auto-suggestions, which can be inspected for the number of network calls
+     * it avoided.
+     * @return the {@link BranchAutoSuggestCache}
+     */
+    @NonNull
+    public BranchAutoSuggestCache getAutoSuggestCache() {
+        return autoSuggestCache;
+    }
+
+    /**
+     * Get the number of requests on the given channel that were replaced by a newer request
+     * before being sent. See {@link BranchConfiguration#setCoalescingWindow(Channel, long, boolean)}.
+     * @param channel the channel
+     * @return the number of coalesced requests
+     */
+    public int getCoalescedRequestCount(@NonNull Channel channel) {
+        return getNetworkHandler(channel).getCoalescedCount();
+    }
+
+    /**
+     * Get the number of requests that were sent to the network on the given channel.
+     * @param channel the channel
+     * @return the number of sent requests
+     */
+    public int getSentRequestCount(@NonNull Channel channel) {
+        return getNetworkHandler(channel).getSentCount();
+    }
+
+    /**
+     * Get the number of requests on the given channel that were hedged with a duplicate request.
+     * See {@link BranchConfiguration#setHedging(Channel, float, float)}.
+     * @param channel the channel
+     * @return the number of hedged requests
+     */
+    public int getHedgedRequestCount(@NonNull Channel channel) {
+        return getNetworkHandler(channel).getHedgeCount();
+    }
+
+    /**
+     * Get the number of hedged requests on the given channel where the duplicate request
+     * answered first.
+     * @param channel the channel
+     * @return the number of hedged requests won by the duplicate
+     */
+    public int getHedgeWinCount(@NonNull Channel channel) {
+        return getNetworkHandler(channel).getHedgeWinCount();
+    }
+
+    // Package Private
+    BranchQueryHintCache getQueryHintCache() {
+        return queryHintCache;
+    }
+
+    // Package Private
+    BranchSearchPrefetcher getPrefetcher() {
+        return prefetcher;
     }
 
     // Undocumented
@@ -153,6 +370,7 @@ public class BranchSearch {
                     .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
             String key = info.metaData.getString(BranchConfiguration.MANIFEST_KEY);
             if (key != null) {
+                BranchServiceEnabledCache.getInstance().attach(context);
                 isServiceEnabled(key, callback);
                 return;
             }
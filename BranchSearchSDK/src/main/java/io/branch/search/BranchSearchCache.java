@@ -0,0 +1,197 @@
+package io.branch.search;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * In-memory cache of search results, sitting in front of the SEARCH channel.
+ *
+ * Entries are keyed by the normalized request (see {@link #createKey(BranchSearchRequest, BranchConfiguration)})
+ * and expire after the TTL given by {@link BranchConfiguration#setSearchCacheTTL(long)}.
+ * The cache is bounded by an estimate of the memory used by the cached results, as given by
+ * {@link BranchConfiguration#setSearchCacheSize(int)}, and evicts the least recently used
+ * entries first.
+ *
+ * Hit and miss counters can be used to measure how many network round trips were saved.
+ */
+public class BranchSearchCache {
+
+    // Rounding applied to lat/long before they go in the key. Two decimals is roughly 1km.
+    private static final double LOCATION_PRECISION = 100D;
+
+    // Rough per-object overhead used when estimating the size of a result.
+    private static final int OBJECT_OVERHEAD_BYTES = 64;
+
+    private final long ttlMillis;
+    private final LruCache<String, Entry> cache;
+    // Written in synchronized methods, and read without the lock.
+    private volatile int hitCount;
+    private volatile int missCount;
+
+    private static class Entry {
+        final BranchSearchResult result;
+        final long expiresAt;
+        final int size;
+
+        Entry(@NonNull BranchSearchResult result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.size = estimateSize(result);
+        }
+    }
+
+    BranchSearchCache(int maxSizeBytes, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.cache = new LruCache<String, Entry>(Math.max(1, maxSizeBytes)) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull Entry value) {
+                return value.size;
+            }
+        };
+    }
+
+    /**
+     * @return true if this cache can hold results.
+     */
+    boolean isEnabled() {
+        return ttlMillis > 0 && cache.maxSize() > 1;
+    }
+
+    /**
+     * Returns a cached result for the given request, or null if there is none or if it expired.
+     * The returned result refers to the given request.
+     */
+    @Nullable
+    synchronized BranchSearchResult get(@NonNull BranchSearchRequest request,
+                                        @NonNull BranchConfiguration configuration) {
+        if (!isEnabled()) return null;
+        String key = createKey(request, configuration);
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expiresAt < SystemClock.elapsedRealtime()) {
+            cache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return new BranchSearchResult(request, entry.result);
+    }
+
+    /**
+     * @return true if there is a result for the given request. Unlike
+     * {@link #get(BranchSearchRequest, BranchConfiguration)}, this is not a hit nor a miss.
+     */
+    synchronized boolean contains(@NonNull BranchSearchRequest request,
+                                  @NonNull BranchConfiguration configuration) {
+        if (!isEnabled()) return false;
+        Entry entry = cache.get(createKey(request, configuration));
+        return entry != null && entry.expiresAt >= SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Stores a successful result for the given request.
+     */
+    synchronized void put(@NonNull BranchSearchRequest request,
+                          @NonNull BranchConfiguration configuration,
+                          @NonNull BranchSearchResult result) {
+        if (!isEnabled()) return;
+        Entry entry = new Entry(result, SystemClock.elapsedRealtime() + ttlMillis);
+        if (entry.size <= cache.maxSize()) {
+            cache.put(createKey(request, configuration), entry);
+        }
+    }
+
+    /**
+     * Removes all the cached results. Counters are not reset.
+     */
+    public synchronized void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * @return the number of requests that were answered by this cache.
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of requests that were not found in this cache and went to the network.
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the estimated size in bytes of the results currently in this cache.
+     */
+    public synchronized int getSize() {
+        return cache.size();
+    }
+
+    @NonNull
+    static String createKey(@NonNull BranchSearchRequest request,
+                            @NonNull BranchConfiguration configuration) {
+        String query = request.getQuery() == null ? ""
+                : request.getQuery().trim().toLowerCase(Locale.ROOT);
+        return query + '|' + createContextKey(request, configuration);
+    }
+
+    /**
+     * @return the part of the key that does not depend on the query: limits, flags, country,
+     * locale and rounded location.
+     */
+    @NonNull
+    static String createContextKey(@NonNull BranchSearchRequest request,
+                                   @NonNull BranchConfiguration configuration) {
+        Locale locale = configuration.getLocale() != null
+                ? configuration.getLocale() : Locale.getDefault();
+        return String.valueOf(request.isQueryModificationDisabled())
+                + '|' + request.getMaxAppResults()
+                + '|' + request.getMaxContentPerAppResults()
+                + '|' + request.getQuerySource()
+                + '|' + configuration.getCountryCode()
+                + '|' + locale
+                + '|' + Math.round(request.getLatitude() * LOCATION_PRECISION)
+                + '|' + Math.round(request.getLongitude() * LOCATION_PRECISION);
+    }
+
+    private static int estimateSize(@NonNull BranchSearchResult result) {
+        int size = OBJECT_OVERHEAD_BYTES + sizeOf(result.getCorrectedQuery());
+        for (BranchAppResult app : result.getResults()) {
+            size += OBJECT_OVERHEAD_BYTES
+                    + sizeOf(app.getAppName())
+                    + sizeOf(app.getPackageName())
+                    + sizeOf(app.getAppIconUrl())
+                    + sizeOf(app.getRankingHint());
+            for (BranchLinkResult link : app.getDeepLinks()) {
+                size += OBJECT_OVERHEAD_BYTES
+                        + sizeOf(link.getEntityID())
+                        + sizeOf(link.getName())
+                        + sizeOf(link.getDescription())
+                        + sizeOf(link.getImageUrl())
+                        + sizeOf(link.getType())
+                        + sizeOf(link.getRankingHint())
+                        + sizeOf(link.getRoutingMode())
+                        + sizeOf(link.getUriScheme())
+                        + sizeOf(link.getWebLink())
+                        + sizeOf(link.getClickTrackingUrl());
+                if (link.getMetadata() != null) {
+                    size += OBJECT_OVERHEAD_BYTES * link.getMetadata().length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static int sizeOf(@Nullable String string) {
+        // Java strings are UTF-16.
+        return string == null ? 0 : 2 * string.length();
+    }
+}
@@ -68,6 +68,10 @@ public class BranchSearchError extends JSONObject {
          * {@link BranchSearch#isServiceEnabled(Context, IBranchServiceEnabledEvents)}. */
         SERVICE_DISABLED_ERR,
 
+        /** Request was not sent because Branch services are failing, see
+         * {@link BranchMetricsSnapshot.ChannelMetrics#getCircuitState()}. */
+        CIRCUIT_OPEN_ERR,
+
         // == App routing related =============================================
 
         /** Unable to open the destination app. */
@@ -109,6 +113,8 @@ public class BranchSearchError extends JSONObject {
             errMsg = "Request was canceled due to new requests being scheduled before it could be completed.";
         } else if (errorCode == ERR_CODE.SERVICE_DISABLED_ERR) {
             errMsg = "The search service is disabled.";
+        } else if (errorCode == ERR_CODE.CIRCUIT_OPEN_ERR) {
+            errMsg = "Branch services are unavailable right now. The request was not sent, please try later.";
         } else if (errorCode == ERR_CODE.ROUTING_ERR_UNABLE_TO_OPEN_APP) {
             errMsg = "Unable to open the destination application or its fallback url.";
         } else if (errorCode == ERR_CODE.ROUTING_ERR_UNABLE_TO_OPEN_WEB_URL) {
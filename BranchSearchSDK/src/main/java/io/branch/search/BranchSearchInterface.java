@@ -2,9 +2,16 @@ package io.branch.search;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
+import android.util.JsonReader;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Headers;
+
 /**
  * Class for searching a user query with Branch.
  */
@@ -16,9 +23,19 @@ class BranchSearchInterface {
     private static final String BRANCH_SERVICE_ENABLED_URL_PREFIX = "https://vulcan.branch.io/configuration/";
     private static final String BRANCH_SERVICE_ENABLED_URL_SUFFIX = ".json";
 
+    // Service enabled requests are idempotent and rare, so they can retry.
+    private static final int RAW_RETRIES = 2;
+
     @VisibleForTesting static URLConnectionNetworkHandler sRawHandler
             = URLConnectionNetworkHandler.initialize();
 
+    static {
+        sRawHandler.setRetries(RAW_RETRIES);
+        sRawHandler.setPriorityClass(BranchMetricsSnapshot.PriorityClass.BACKGROUND);
+        sRawHandler.setCircuitBreaker(BranchConfiguration.DEFAULT_CIRCUIT_FAILURE_RATE,
+                BranchConfiguration.DEFAULT_CIRCUIT_OPEN_MILLIS);
+    }
+
     static boolean Search(final BranchSearchRequest request,
                           final BranchConfiguration configuration,
                           final IBranchSearchEvents callback) {
@@ -27,9 +44,105 @@ class BranchSearchInterface {
             return false;
         }
 
-        JSONObject jsonPayload = createPayload(request, configuration);
+        // If we answered the same request recently, there's no need to go to the network.
+        final BranchSearchCache cache = search.getSearchCache();
+        final BranchSearchResult cachedResult = cache.get(request, configuration);
+        if (cachedResult != null) {
+            search.getNetworkHandler(BranchSearch.Channel.SEARCH).cancelPost();
+            search.getPrefetcher().onCacheHit(request, configuration);
+            if (callback != null) {
+                configuration.getCallbackExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBranchSearchResult(cachedResult);
+                    }
+                });
+            }
+            return true;
+        }
+
+        BranchRequestPayload payload = createPayload(request, configuration);
+
+        search.getNetworkHandler(BranchSearch.Channel.SEARCH).executePost(configuration.getUrl(),
+                payload, createSearchEvents(request, configuration, cache, callback));
+
+        return true;
+    }
+
+    /**
+     * Sends several search requests at once. They run in parallel and, unlike
+     * {@link #Search(BranchSearchRequest, BranchConfiguration, IBranchSearchEvents)}, do not
+     * cancel each other. The callback is called once all of them are answered.
+     */
+    static boolean SearchBatch(final List<BranchSearchRequest> requests,
+                               final BranchConfiguration configuration,
+                               final IBranchBatchSearchEvents callback) {
+        final BranchSearch search = BranchSearch.getInstance();
+        if (search == null) {
+            return false;
+        }
+
+        final BranchBatchSearchResult batchResult = new BranchBatchSearchResult(requests);
+        final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null) {
+                    callback.onBranchBatchSearchResult(batchResult);
+                }
+            }
+        };
+        if (batchResult.isEmpty()) {
+            configuration.getCallbackExecutor().execute(deliver);
+            return true;
+        }
+
+        // All payloads share the static payload, see createPayload.
+        BranchSearchCache cache = search.getSearchCache();
+        List<BranchRequestPayload> payloads = new ArrayList<>(requests.size());
+        List<IURLConnectionEvents> events = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final int index = i;
+            BranchSearchRequest request = requests.get(i);
+            BranchSearchResult cachedResult = cache.get(request, configuration);
+            if (cachedResult != null) {
+                if (batchResult.setResult(index, cachedResult)) {
+                    configuration.getCallbackExecutor().execute(deliver);
+                }
+                continue;
+            }
+            payloads.add(createPayload(request, configuration));
+            events.add(createSearchEvents(request, configuration, cache, new IBranchSearchEvents() {
+                @Override
+                public void onBranchSearchResult(BranchSearchResult result) {
+                    if (batchResult.setResult(index, result)) deliver.run();
+                }
+
+                @Override
+                public void onBranchSearchError(BranchSearchError error) {
+                    if (batchResult.setError(index, error)) deliver.run();
+                }
+            }));
+        }
+
+        if (!payloads.isEmpty()) {
+            search.getNetworkHandler(BranchSearch.Channel.SEARCH)
+                    .executeBatch(configuration.getUrl(), payloads, events);
+        }
+        return true;
+    }
+
+    // The network callback of a search request, which is called on the callback executor.
+    private static IURLConnectionParser createSearchEvents(final BranchSearchRequest request,
+                                                           final BranchConfiguration configuration,
+                                                           final BranchSearchCache cache,
+                                                           final IBranchSearchEvents callback) {
+        return new IURLConnectionParser() {
+            @NonNull
+            @Override
+            public Object parse(@NonNull JsonReader reader) throws IOException {
+                return BranchResponseParser.parse(request, reader);
+            }
 
-        search.getNetworkHandler(BranchSearch.Channel.SEARCH).executePost(configuration.getUrl(), jsonPayload, new IURLConnectionEvents() {
             @Override
             public void onResult(final @NonNull JSONObject response) {
                 if (callback != null) {
@@ -41,46 +154,88 @@ class BranchSearchInterface {
                         ServiceEnabled(configuration.getBranchKey(), new IBranchServiceEnabledEvents() {
                             @Override
                             public void onBranchServiceEnabledResult(@NonNull BranchServiceEnabledResult result) {
+                                final BranchSearchError error;
                                 if (result.isEnabled()) {
-                                    callback.onBranchSearchError((BranchSearchError) response);
+                                    error = (BranchSearchError) response;
                                 } else {
                                     BranchSearchError.ERR_CODE code = BranchSearchError.ERR_CODE.SERVICE_DISABLED_ERR;
-                                    callback.onBranchSearchError(new BranchSearchError(code));
+                                    error = new BranchSearchError(code);
                                 }
+                                // This was delivered on the main thread, go back to the callback executor.
+                                configuration.getCallbackExecutor().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        callback.onBranchSearchError(error);
+                                    }
+                                });
                             }
                         });
                     } else if (isError) {
                         callback.onBranchSearchError((BranchSearchError) response);
                     } else {
-                        callback.onBranchSearchResult(BranchResponseParser.parse(request, response));
+                        // Parsed on the network thread, see parse() above.
+                        BranchSearchResult result = (BranchSearchResult)
+                                ((BranchParsedResponse) response).getResult();
+                        cache.put(request, configuration, result);
+                        callback.onBranchSearchResult(result);
                     }
                 }
             }
-
-        });
-
-        return true;
+        };
     }
 
     static boolean AutoSuggest(final BranchSearchRequest request,
                                final BranchConfiguration configuration,
                                final IBranchQueryResults callback) {
-        BranchSearch search = BranchSearch.getInstance();
+        final BranchSearch search = BranchSearch.getInstance();
         if (search == null) {
             return false;
         }
 
-        JSONObject jsonPayload = createPayload(request, configuration);
+        // We might be able to answer from the suggestions of this prefix or a shorter one.
+        final BranchAutoSuggestCache cache = search.getAutoSuggestCache();
+        final BranchAutoSuggestCache.Lookup lookup = cache.lookup(request, configuration);
+        if (lookup != null && (lookup.isFinal || configuration.hasAutoSuggestProvisionalResults())) {
+            if (lookup.isFinal) {
+                search.getNetworkHandler(BranchSearch.Channel.AUTOSUGGEST).cancelPost();
+            }
+            if (callback != null) {
+                configuration.getCallbackExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onQueryResult(BranchQueryResult.createFromList(lookup.results));
+                    }
+                });
+            }
+            if (lookup.isFinal) {
+                search.getPrefetcher().prefetch(request, lookup.results, configuration);
+                return true;
+            }
+        }
+
+        BranchRequestPayload payload = createPayload(request, configuration);
+
+        search.getNetworkHandler(BranchSearch.Channel.AUTOSUGGEST).executePost(BRANCH_AUTOSUGGEST_URL, payload, new IURLConnectionParser() {
+            @NonNull
+            @Override
+            public Object parse(@NonNull JsonReader reader) throws IOException {
+                return BranchQueryResult.createFromJsonReader(reader);
+            }
 
-        search.getNetworkHandler(BranchSearch.Channel.AUTOSUGGEST).executePost(BRANCH_AUTOSUGGEST_URL, jsonPayload, new IURLConnectionEvents() {
             @Override
             public void onResult(@NonNull JSONObject response) {
-                if (callback != null) {
-                    if (response instanceof BranchSearchError) {
+                if (response instanceof BranchSearchError) {
+                    if (callback != null) {
                         callback.onError((BranchSearchError) response);
-                    } else {
-                        callback.onQueryResult(BranchQueryResult.createFromJson(response));
                     }
+                } else {
+                    BranchQueryResult result = (BranchQueryResult)
+                            ((BranchParsedResponse) response).getResult();
+                    cache.put(request, configuration, result.getQueryResults());
+                    if (callback != null) {
+                        callback.onQueryResult(result);
+                    }
+                    search.getPrefetcher().prefetch(request, result.getQueryResults(), configuration);
                 }
             }
 
@@ -98,16 +253,50 @@ class BranchSearchInterface {
             return false;
         }
 
-        JSONObject jsonPayload = createPayload(request, configuration);
+        // Deliver the persisted hints right away, and only go to the network if they are stale.
+        final BranchQueryHintCache cache = search.getQueryHintCache();
+        final List<String> cachedHints = cache.get(configuration);
+        if (cachedHints != null) {
+            if (callback != null) {
+                Runnable deliver = new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onQueryResult(BranchQueryResult.createFromList(cachedHints));
+                    }
+                };
+                if (configuration.hasQueryHintSynchronousDelivery()) {
+                    deliver.run();
+                } else {
+                    configuration.getCallbackExecutor().execute(deliver);
+                }
+            }
+            if (cache.isFresh()) {
+                return true;
+            }
+        }
+
+        BranchRequestPayload payload = createPayload(request, configuration);
+
+        search.getNetworkHandler(BranchSearch.Channel.QUERYHINT).executePost(BRANCH_QUERYHINT_URL, payload, new IURLConnectionParser() {
+            @NonNull
+            @Override
+            public Object parse(@NonNull JsonReader reader) throws IOException {
+                return BranchQueryResult.createFromJsonReader(reader);
+            }
 
-        search.getNetworkHandler(BranchSearch.Channel.QUERYHINT).executePost(BRANCH_QUERYHINT_URL, jsonPayload, new IURLConnectionEvents() {
             @Override
             public void onResult(@NonNull JSONObject response) {
-                if (callback != null) {
-                    if (response instanceof BranchSearchError) {
+                if (response instanceof BranchSearchError) {
+                    // If we delivered stale hints, they are still better than an error.
+                    if (callback != null && cachedHints == null) {
                         callback.onError((BranchSearchError) response);
-                    } else {
-                        callback.onQueryResult(BranchQueryResult.createFromJson(response));
+                    }
+                } else {
+                    BranchQueryResult result = (BranchQueryResult)
+                            ((BranchParsedResponse) response).getResult();
+                    cache.put(configuration, result.getQueryResults());
+                    if (callback != null && !result.getQueryResults().equals(cachedHints)) {
+                        callback.onQueryResult(result);
                     }
                 }
             }
@@ -117,19 +306,55 @@ class BranchSearchInterface {
         return true;
     }
 
-    static void ServiceEnabled(@NonNull String branchKey,
+    static void ServiceEnabled(final @NonNull String branchKey,
                                final @NonNull IBranchServiceEnabledEvents callback) {
+        // Answer from the cache if we can. Results are delivered on the main thread.
+        final BranchServiceEnabledCache cache = BranchServiceEnabledCache.getInstance();
+        final BranchServiceEnabledCache.Entry cached = cache.get(branchKey);
+        if (cached != null && cache.isFresh(cached)) {
+            Util.MAIN_THREAD_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onBranchServiceEnabledResult(
+                            BranchServiceEnabledResult.create(cached.isEnabled));
+                }
+            });
+            return;
+        }
+
         // This can be called before initialization, so don't try to get the BranchSearch instance.
         // Also, we don't have a dedicated network channel, so use the raw handler.
         String url = BRANCH_SERVICE_ENABLED_URL_PREFIX + branchKey + BRANCH_SERVICE_ENABLED_URL_SUFFIX;
-        sRawHandler.executeGet(url, new IURLConnectionEvents() {
+        Headers headers = BranchServiceEnabledCache.getValidationHeaders(cached);
+        sRawHandler.executeGet(url, headers, new IURLConnectionParser() {
+            @NonNull
+            @Override
+            public Object parse(@NonNull JsonReader reader) throws IOException {
+                return BranchServiceEnabledResult.createFromJsonReader(reader);
+            }
+
             @Override
             public void onResult(@NonNull JSONObject response) {
                 BranchServiceEnabledResult result;
                 if (response instanceof BranchSearchError) {
-                    result = BranchServiceEnabledResult.createFromError((BranchSearchError) response);
+                    // A stale result is still better than assuming that the service is enabled.
+                    result = cached != null
+                            ? BranchServiceEnabledResult.create(cached.isEnabled)
+                            : BranchServiceEnabledResult.createFromError((BranchSearchError) response);
                 } else {
-                    result = BranchServiceEnabledResult.createFromJson(response);
+                    BranchParsedResponse parsed = (BranchParsedResponse) response;
+                    if (parsed.getResult() != BranchParsedResponse.NOT_MODIFIED) {
+                        result = (BranchServiceEnabledResult) parsed.getResult();
+                        cache.put(branchKey, result.isEnabled(), parsed.getHeaders());
+                    } else if (cached != null) {
+                        // Still valid: refresh the cached entry.
+                        result = BranchServiceEnabledResult.create(cached.isEnabled);
+                        cache.put(branchKey, cached.isEnabled, parsed.getHeaders());
+                    } else {
+                        // We did not ask for validation, so there's nothing to refresh.
+                        result = BranchServiceEnabledResult.createFromError(
+                                new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR));
+                    }
                 }
                 // We do not have an error callback, see BranchServiceEnabledResult.createFromError
                 callback.onBranchServiceEnabledResult(result);
@@ -137,19 +362,13 @@ class BranchSearchInterface {
         });
     }
 
-    static JSONObject createPayload(BranchSearchRequest request, BranchConfiguration configuration) {
-        JSONObject jsonPayload = request.convertToJson();
-        BranchDeviceInfo.addDeviceInfo(jsonPayload);
-        configuration.addConfigurationInfo(jsonPayload);
-
-        return jsonPayload;
+    // Device and configuration info are encoded once, see BranchStaticPayload.
+    // Request fields are streamed into the connection, see BranchRequestBody.
+    static BranchRequestPayload createPayload(BranchSearchRequest request, BranchConfiguration configuration) {
+        return new BranchRequestPayload(request, BranchStaticPayload.get(configuration));
     }
 
-    static JSONObject createPayload(BranchQueryHintRequest request, BranchConfiguration configuration) {
-        JSONObject jsonPayload = request.convertToJson();
-        BranchDeviceInfo.addDeviceInfo(jsonPayload);
-        configuration.addConfigurationInfo(jsonPayload);
-
-        return jsonPayload;
+    static BranchRequestPayload createPayload(BranchQueryHintRequest request, BranchConfiguration configuration) {
+        return new BranchRequestPayload(request, BranchStaticPayload.get(configuration));
     }
 }
@@ -0,0 +1,200 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Prefetches the search results of the top auto-suggestions into the {@link BranchSearchCache},
+ * see {@link BranchConfiguration#setAutoSuggestPrefetch(int, long)}.
+ *
+ * Prefetches go out as background requests on the SEARCH channel, a few at a time, so they
+ * don't cancel nor delay the user requests much. New suggestions replace the prefetches that
+ * did not start yet. Once the data budget of the session is spent, nothing is prefetched.
+ *
+ * A search answered by the cache with a prefetched result is a hit. The bytes of the other
+ * prefetched results are wasted, at least so far.
+ */
+class BranchSearchPrefetcher {
+    private static final int MAX_CONCURRENT_PREFETCHES = 2;
+    private static final int METERED_PREFETCH_COUNT = 1;
+
+    // Prefetched results that were not used yet, remembered for hit accounting.
+    private static final int MAX_UNUSED_PREFETCHES = 64;
+
+    private final Context context;
+    private final Object lock = new Object();
+    private final ArrayDeque<BranchSearchRequest> queue = new ArrayDeque<>();
+    private final Set<String> pendingKeys = new HashSet<>();
+    private final Map<String, Long> unusedBytes = new LinkedHashMap<>();
+    private int runningCount;
+    // Written while holding the lock, and read without it by metrics snapshots.
+    private volatile long spentBytes;
+    private volatile int prefetchCount;
+    private volatile int hitCount;
+    private volatile long hitBytes;
+
+    /**
+     * @param context a context, used to check whether the network is metered. If null, it is
+     *                assumed not to be.
+     */
+    BranchSearchPrefetcher(@Nullable Context context) {
+        this.context = context == null ? null : context.getApplicationContext();
+    }
+
+    /**
+     * Prefetches the results of the top suggestions for an auto-suggest request.
+     * @param request the auto-suggest request
+     * @param suggestions its suggestions, best first
+     * @param configuration the configuration
+     */
+    void prefetch(@NonNull BranchSearchRequest request,
+                  @NonNull List<String> suggestions,
+                  @NonNull BranchConfiguration configuration) {
+        int count = configuration.getAutoSuggestPrefetchCount();
+        if (count <= 0) return;
+        if (context != null && Util.isNetworkMetered(context)) {
+            count = Math.min(count, METERED_PREFETCH_COUNT);
+        }
+        BranchSearch search = BranchSearch.getInstance();
+        if (search == null) return;
+        // Never null: the caches are created with the BranchSearch instance, before init returns.
+        BranchSearchCache cache = search.getSearchCache();
+        if (!cache.isEnabled()) return;
+
+        synchronized (lock) {
+            // Suggestions for an older prefix are outdated.
+            for (BranchSearchRequest queued : queue) {
+                pendingKeys.remove(BranchSearchCache.createKey(queued, configuration));
+            }
+            queue.clear();
+
+            for (int i = 0; i < Math.min(count, suggestions.size()); i++) {
+                // The search for a tapped suggestion must have the same cache key, so take
+                // everything but the query from the auto-suggest request.
+                BranchSearchRequest prefetch = BranchSearchRequest.Create(suggestions.get(i))
+                        .setQuerySource(BranchQuerySource.AUTOSUGGEST_RESULTS)
+                        .setMaxAppResults(request.getMaxAppResults())
+                        .setMaxContentPerAppResults(request.getMaxContentPerAppResults())
+                        .setLatitude(request.getLatitude())
+                        .setLongitude(request.getLongitude());
+                if (request.isQueryModificationDisabled()) {
+                    prefetch.disableQueryModification();
+                }
+                String key = BranchSearchCache.createKey(prefetch, configuration);
+                if (pendingKeys.contains(key) || cache.contains(prefetch, configuration)) {
+                    continue;
+                }
+                pendingKeys.add(key);
+                queue.add(prefetch);
+            }
+            startNext(search, configuration);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void startNext(@NonNull BranchSearch search,
+                           @NonNull final BranchConfiguration configuration) {
+        while (runningCount < MAX_CONCURRENT_PREFETCHES && !queue.isEmpty()
+                && spentBytes < configuration.getAutoSuggestPrefetchBudget()) {
+            final BranchSearchRequest request = queue.poll();
+            final String key = BranchSearchCache.createKey(request, configuration);
+            final BranchSearchCache cache = search.getSearchCache();
+            runningCount++;
+            search.getNetworkHandler(BranchSearch.Channel.SEARCH).executeBackground(
+                    configuration.getUrl(),
+                    BranchSearchInterface.createPayload(request, configuration),
+                    new IURLConnectionParser() {
+                        @NonNull
+                        @Override
+                        public Object parse(@NonNull JsonReader reader) throws IOException {
+                            return BranchResponseParser.parse(request, reader);
+                        }
+
+                        @Override
+                        public void onResult(@NonNull JSONObject response) {
+                            BranchSearchResult result = null;
+                            long bytes = 0;
+                            if (response instanceof BranchParsedResponse) {
+                                result = (BranchSearchResult)
+                                        ((BranchParsedResponse) response).getResult();
+                                bytes = ((BranchParsedResponse) response).getBodySize();
+                                cache.put(request, configuration, result);
+                            }
+                            onPrefetched(key, result != null, bytes, configuration);
+                        }
+                    });
+        }
+    }
+
+    private void onPrefetched(@NonNull String key, boolean success, long bytes,
+                              @NonNull BranchConfiguration configuration) {
+        synchronized (lock) {
+            runningCount--;
+            pendingKeys.remove(key);
+            if (success) {
+                prefetchCount++;
+                spentBytes += bytes;
+                unusedBytes.put(key, bytes);
+                if (unusedBytes.size() > MAX_UNUSED_PREFETCHES) {
+                    Iterator<String> eldest = unusedBytes.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            BranchSearch search = BranchSearch.getInstance();
+            if (search != null) startNext(search, configuration);
+        }
+    }
+
+    /**
+     * Called when a search was answered by the {@link BranchSearchCache}.
+     * @param request the search request
+     * @param configuration the configuration
+     */
+    void onCacheHit(@NonNull BranchSearchRequest request,
+                    @NonNull BranchConfiguration configuration) {
+        synchronized (lock) {
+            Long bytes = unusedBytes.remove(BranchSearchCache.createKey(request, configuration));
+            if (bytes != null) {
+                hitCount++;
+                hitBytes += bytes;
+            }
+        }
+    }
+
+    /**
+     * @return the number of search results that were prefetched.
+     */
+    int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * @return the number of searches that were answered with a prefetched result.
+     */
+    int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of response bytes of prefetched results that were not used.
+     */
+    long getWastedBytes() {
+        // Hits never add more bytes than were spent, so read those first.
+        long hitBytes = this.hitBytes;
+        return spentBytes - hitBytes;
+    }
+}
@@ -6,6 +6,8 @@ import android.support.annotation.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * Request model for Branch Search.
  */
@@ -99,7 +101,11 @@ public class BranchSearchRequest extends BranchDiscoveryRequest<BranchSearchRequ
     }
 
     JSONObject convertToJson() {
-        JSONObject object = new JSONObject();
+        return convertToJson(new JSONObject());
+    }
+
+    @Override
+    JSONObject convertToJson(JSONObject object) {
         super.convertToJson(object);
 
         try {
@@ -117,7 +123,38 @@ public class BranchSearchRequest extends BranchDiscoveryRequest<BranchSearchRequ
         return object;
     }
 
+    @Override
+    void writeTo(BranchJsonWriter writer, long timestamp) throws IOException {
+        super.writeTo(writer, timestamp);
+        writer.member(JSONKey.LimitAppResults.toString(), maxAppResults);
+        writer.member(JSONKey.LimitLinkResults.toString(), maxContentPerAppResults);
+        writer.member(JSONKey.UserQuery.toString(), user_query);
+        if (doNotModifyQuery) {
+            writer.member(JSONKey.DoNotModify.toString(), true);
+        }
+        if (querySource != null) {
+            writer.member(JSONKey.QuerySource.toString(), querySource.toString());
+        }
+    }
+
     public String getQuery() {
         return user_query;
     }
+
+    int getMaxAppResults() {
+        return maxAppResults;
+    }
+
+    int getMaxContentPerAppResults() {
+        return maxContentPerAppResults;
+    }
+
+    boolean isQueryModificationDisabled() {
+        return doNotModifyQuery;
+    }
+
+    @NonNull
+    BranchQuerySource getQuerySource() {
+        return querySource;
+    }
 }
@@ -18,6 +18,16 @@ public class BranchSearchResult {
         this.results = new ArrayList<>();
     }
 
+    /**
+     * Creates a result for the given request that shares the results of another one.
+     * Used when serving a request from the {@link BranchSearchCache}.
+     */
+    BranchSearchResult(BranchSearchRequest query, BranchSearchResult other) {
+        this.query = query;
+        this.corrected_query = other.corrected_query;
+        this.results = other.results;
+    }
+
     /**
      * @return the original Branch search query.
      */
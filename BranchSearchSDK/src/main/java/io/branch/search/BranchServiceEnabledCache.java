@@ -0,0 +1,160 @@
+package io.branch.search;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Headers;
+
+/**
+ * Cache of {@link BranchServiceEnabledResult}s per Branch key, in memory and, once a context
+ * is known, in the app private SharedPreferences.
+ *
+ * Results younger than the TTL are served right away. Older ones are revalidated with a
+ * conditional request, using the ETag and Last-Modified headers of the response they came
+ * from, so that an unchanged configuration costs a round trip but no download. If the
+ * request fails, the stale result is still better than assuming the service is enabled.
+ *
+ * This is used before initialization too, so there's one per process. Safe to use from any
+ * thread.
+ */
+class BranchServiceEnabledCache {
+    private static final String PREFS_NAME = "io.branch.search.serviceenabled";
+    private static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000L;
+
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+
+    @VisibleForTesting
+    static BranchServiceEnabledCache sInstance = new BranchServiceEnabledCache(DEFAULT_TTL_MILLIS);
+
+    /**
+     * A cached result, along with what is needed to revalidate it.
+     */
+    static class Entry {
+        final boolean isEnabled;
+        final long timestamp;
+        final String etag;
+        final String lastModified;
+
+        Entry(boolean isEnabled, long timestamp,
+              @Nullable String etag, @Nullable String lastModified) {
+            this.isEnabled = isEnabled;
+            this.timestamp = timestamp;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile SharedPreferences preferences;
+
+    @VisibleForTesting
+    BranchServiceEnabledCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    @NonNull
+    static BranchServiceEnabledCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Persists results from now on, and makes the ones of previous sessions available.
+     * @param context a context
+     */
+    void attach(@NonNull Context context) {
+        if (preferences == null) {
+            // Getting the preferences starts loading them in the background.
+            preferences = context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+    }
+
+    /**
+     * @param branchKey the Branch key
+     * @return the cached result for this key, fresh or stale, or null if there's none.
+     */
+    @Nullable
+    Entry get(@NonNull String branchKey) {
+        Entry entry = entries.get(branchKey);
+        if (entry != null) return entry;
+        SharedPreferences preferences = this.preferences;
+        if (preferences == null) return null;
+        String json = preferences.getString(branchKey, null);
+        if (json == null) return null;
+        try {
+            JSONObject object = new JSONObject(json);
+            entry = new Entry(object.getBoolean(KEY_ENABLED),
+                    object.getLong(KEY_TIMESTAMP),
+                    object.optString(KEY_ETAG, null),
+                    object.optString(KEY_LAST_MODIFIED, null));
+        } catch (JSONException e) {
+            return null;
+        }
+        entries.put(branchKey, entry);
+        return entry;
+    }
+
+    /**
+     * @param entry a cached result
+     * @return true if the result can be used without revalidating it.
+     */
+    boolean isFresh(@NonNull Entry entry) {
+        long age = System.currentTimeMillis() - entry.timestamp;
+        return age >= 0 && age < ttlMillis;
+    }
+
+    /**
+     * Stores a result, or refreshes it after it was revalidated.
+     * @param branchKey the Branch key
+     * @param isEnabled whether the service is enabled
+     * @param headers the headers of the response
+     */
+    void put(@NonNull String branchKey, boolean isEnabled, @NonNull Headers headers) {
+        // A 304 response may not repeat the validators.
+        Entry previous = entries.get(branchKey);
+        String etag = headers.get("ETag");
+        String lastModified = headers.get("Last-Modified");
+        if (etag == null && previous != null) etag = previous.etag;
+        if (lastModified == null && previous != null) lastModified = previous.lastModified;
+        Entry entry = new Entry(isEnabled, System.currentTimeMillis(), etag, lastModified);
+        entries.put(branchKey, entry);
+        SharedPreferences preferences = this.preferences;
+        if (preferences == null) return;
+        try {
+            JSONObject object = new JSONObject()
+                    .put(KEY_ENABLED, entry.isEnabled)
+                    .put(KEY_TIMESTAMP, entry.timestamp)
+                    .putOpt(KEY_ETAG, entry.etag)
+                    .putOpt(KEY_LAST_MODIFIED, entry.lastModified);
+            preferences.edit().putString(branchKey, object.toString()).apply();
+        } catch (JSONException ignore) {}
+    }
+
+    /**
+     * @param entry a cached result, or null
+     * @return the headers that make a request conditional on this result having changed.
+     */
+    @NonNull
+    static Headers getValidationHeaders(@Nullable Entry entry) {
+        Headers.Builder builder = new Headers.Builder();
+        if (entry != null && entry.etag != null) {
+            builder.add("If-None-Match", entry.etag);
+        }
+        if (entry != null && entry.lastModified != null) {
+            builder.add("If-Modified-Since", entry.lastModified);
+        }
+        return builder.build();
+    }
+}
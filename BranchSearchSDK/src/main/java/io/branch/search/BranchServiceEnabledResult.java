@@ -1,9 +1,13 @@
 package io.branch.search;
 
 import android.support.annotation.NonNull;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /**
  * Class for representing a 'service enabled' query result.
  */
@@ -23,6 +27,12 @@ public class BranchServiceEnabledResult {
         return isEnabled;
     }
 
+    static BranchServiceEnabledResult create(boolean isEnabled) {
+        BranchServiceEnabledResult result = new BranchServiceEnabledResult();
+        result.isEnabled = isEnabled;
+        return result;
+    }
+
     static BranchServiceEnabledResult createFromJson(@NonNull JSONObject jsonObject) {
         BranchServiceEnabledResult result = new BranchServiceEnabledResult();
         boolean isDisabled = jsonObject.has(DISABLED_KEY)
@@ -31,6 +41,28 @@ public class BranchServiceEnabledResult {
         return result;
     }
 
+    static BranchServiceEnabledResult createFromJsonReader(@NonNull JsonReader reader)
+            throws IOException {
+        BranchServiceEnabledResult result = new BranchServiceEnabledResult();
+        boolean isDisabled = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!DISABLED_KEY.equals(reader.nextName())) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.BOOLEAN) {
+                isDisabled = reader.nextBoolean();
+            } else if (reader.peek() == JsonToken.STRING) {
+                // Same as JSONObject.optBoolean, which accepts "true" strings.
+                isDisabled = "true".equalsIgnoreCase(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        result.isEnabled = !isDisabled;
+        return result;
+    }
+
     static BranchServiceEnabledResult createFromError(@NonNull BranchSearchError error) {
         // The IBranchServiceEnabledEvents interface has no error callback on purpose, because
         // we don't want it to be misused (misinterpreted as a 'disabled' response).
@@ -0,0 +1,74 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import okio.ByteString;
+
+/**
+ * The static part of request payloads: device and configuration info.
+ *
+ * These values don't change during a session, so they are put and encoded once, as the JSON
+ * members that every payload starts with, instead of a dozen puts and boxed values per
+ * request. See {@link BranchRequestPayload} and {@link BranchRequestBody}.
+ *
+ * The encoding is redone when the configuration changes (for example when the GAID is
+ * resolved), or when the device info is refreshed after a locale or configuration change.
+ */
+class BranchStaticPayload {
+
+    private static volatile BranchStaticPayload sCached;
+
+    private final BranchConfiguration configuration;
+    private final int configurationVersion;
+    private final int deviceInfoVersion;
+    private final JSONObject json;
+    private final ByteString encodedMembers;
+
+    private BranchStaticPayload(@NonNull BranchConfiguration configuration) {
+        // Read the versions first: if something changes while we encode, we'll encode again.
+        this.configuration = configuration;
+        this.configurationVersion = configuration.getPayloadVersion();
+        this.deviceInfoVersion = BranchDeviceInfo.getInfoVersion();
+        this.json = new JSONObject();
+        BranchDeviceInfo.addDeviceInfo(json);
+        configuration.addConfigurationInfo(json);
+        String encoded = json.toString();
+        this.encodedMembers = ByteString.encodeUtf8(encoded.substring(1, encoded.length() - 1));
+    }
+
+    /**
+     * Returns the static payload of the given configuration, encoding it if needed.
+     * @param configuration the configuration
+     * @return the static payload
+     */
+    @NonNull
+    static BranchStaticPayload get(@NonNull BranchConfiguration configuration) {
+        BranchStaticPayload cached = sCached;
+        if (cached == null
+                || cached.configuration != configuration
+                || cached.configurationVersion != configuration.getPayloadVersion()
+                || cached.deviceInfoVersion != BranchDeviceInfo.getInfoVersion()) {
+            cached = new BranchStaticPayload(configuration);
+            sCached = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * @return the static values. This must not be modified.
+     */
+    @NonNull
+    JSONObject getJson() {
+        return json;
+    }
+
+    /**
+     * @return the UTF-8 encoded JSON members, without the enclosing braces.
+     */
+    @NonNull
+    ByteString getEncodedMembers() {
+        return encodedMembers;
+    }
+}
@@ -0,0 +1,43 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Sends the requests of a {@link URLConnectionNetworkHandler} and returns their responses,
+ * see {@link URLConnectionNetworkHandler#setTransport(BranchTransport)}.
+ *
+ * The transport sits at the end of the interceptors of the handler's client, so scheduling,
+ * timeouts, retries, cancellation and parsing all work the same whatever the transport is.
+ * {@link #NETWORK} sends requests to the real endpoints. {@link BranchFakeTransport} answers
+ * them in process, to benchmark the SDK without a network.
+ */
+interface BranchTransport {
+
+    /**
+     * Sends requests over the network, with the handler's client.
+     */
+    BranchTransport NETWORK = new BranchTransport() {
+        @NonNull
+        @Override
+        public Response execute(@NonNull Interceptor.Chain chain) throws IOException {
+            return chain.proceed(chain.request());
+        }
+    };
+
+    /**
+     * Sends a request. This is called on the thread that runs the request, and should give up
+     * with an IOException when the call is canceled, see {@link Interceptor.Chain#call()}.
+     * @param chain the interceptor chain, with the request and its call
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    @WorkerThread
+    @NonNull
+    Response execute(@NonNull Interceptor.Chain chain) throws IOException;
+}
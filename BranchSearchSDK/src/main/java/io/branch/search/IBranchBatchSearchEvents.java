@@ -0,0 +1,14 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Interface for calling back Branch batch search results.
+ */
+public interface IBranchBatchSearchEvents {
+    /**
+     * Called once every request of the batch has a result or an error.
+     * @param result {@link BranchBatchSearchResult} object containing the result of each request
+     */
+    void onBranchBatchSearchResult(@NonNull BranchBatchSearchResult result);
+}
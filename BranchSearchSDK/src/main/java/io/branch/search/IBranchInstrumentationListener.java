@@ -0,0 +1,56 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import io.branch.search.BranchMetricsSnapshot.PriorityClass;
+
+/**
+ * Interface for observing how the SDK schedules network requests, for example to find out
+ * whether a slow query waited for a thread, waited on the network, or was canceled late.
+ * See {@link BranchConfiguration#setInstrumentationListener(IBranchInstrumentationListener)}.
+ *
+ * Methods are called on SDK threads, often while a request is running, so they must be quick
+ * and must not block. Durations are in nanoseconds, from a monotonic clock.
+ */
+public interface IBranchInstrumentationListener {
+
+    /**
+     * Called when a thread starts running a task.
+     * @param priorityClass the class of the task
+     * @param queueWaitNanos how long the task waited for a thread
+     * @param activeThreads the number of threads running tasks, including this one
+     * @param queueDepth the number of tasks still waiting for a thread
+     */
+    @WorkerThread
+    void onTaskStarted(@NonNull PriorityClass priorityClass, long queueWaitNanos,
+                       int activeThreads, int queueDepth);
+
+    /**
+     * Called when a thread is done running a task.
+     * @param priorityClass the class of the task
+     * @param runNanos how long the task ran
+     */
+    @WorkerThread
+    void onTaskFinished(@NonNull PriorityClass priorityClass, long runNanos);
+
+    /**
+     * Called when a canceled request delivers REQUEST_CANCELED to its callback.
+     * @param priorityClass the class of the request
+     * @param cancelNanos the time between the cancellation and the delivery
+     */
+    void onTaskCanceled(@NonNull PriorityClass priorityClass, long cancelNanos);
+
+    /**
+     * Called when the SDK creates a thread.
+     * @param threadCount the number of SDK threads alive, including the new one
+     */
+    void onThreadCreated(int threadCount);
+
+    /**
+     * Called when an SDK thread ends, after staying idle for a while.
+     * @param threadCount the number of SDK threads still alive
+     */
+    @WorkerThread
+    void onThreadTerminated(int threadCount);
+}
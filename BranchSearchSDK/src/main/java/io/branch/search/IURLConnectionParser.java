@@ -0,0 +1,25 @@
+package io.branch.search;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * URLConnection Parser Interface.
+ *
+ * Events that implement this interface parse successful responses themselves, straight from
+ * the response stream and on the network thread, instead of receiving a JSONObject tree.
+ * The object returned by {@link #parse(JsonReader)} is then delivered to
+ * {@link #onResult(org.json.JSONObject)} wrapped in a {@link BranchParsedResponse}.
+ *
+ * Note that {@link #parse(JsonReader)} can be called more than once per request, for example
+ * for hedged requests, and possibly concurrently. It should not keep state.
+ */
+interface IURLConnectionParser extends IURLConnectionEvents {
+
+    @WorkerThread
+    @NonNull
+    Object parse(@NonNull JsonReader reader) throws IOException;
+}
@@ -1,82 +1,687 @@
 package io.branch.search;
 
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.JsonReader;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import io.branch.search.BranchMetricsSnapshot.PriorityClass;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
 /**
  * URLConnection Network Handler.
  *
- * This class uses a {@link BranchExecutor} to schedule (through Android AsyncTasks) network
- * requests.
+ * This class runs network requests on the threads of a {@link BranchExecutor}, with the
+ * {@link PriorityClass} of the handler, see {@link #setPriorityClass(PriorityClass)}.
  *
  * As new requests are coming, the policy in this class is to schedule the new request, and then
- * cancel any pending request for the same type. Canceling pending requests is:
+ * cancel any pending request for the same type. This is important - if we don't, we allow
+ * multiple requests of the same type, and this means we can't guarantee that the result
+ * callback is called in the correct order and this can cause UI issues.
+ *
+ * Canceling is cheap: it claims the callback of the old request, which receives
+ * REQUEST_CANCELED exactly once, and closes its socket without blocking. It does not interrupt
+ * any thread, so it can be done right away on the calling thread, including the UI thread.
+ * The thread that was running the old request is then free for future requests.
  *
- * - expensive - if the task is in the middle of network I/O, canceling can take time
- * - important - if we don't, we allow multiple requests of the same time, and this means
- *   we can't guarantee that the result callback is called in the correct order and this can
- *   cause UI issues.
- * - delicate in that we must ensure that it's not called on an UI thread.
+ * All handlers share a single {@link BranchExecutor}, whose pool size is set here to 6, which
+ * is just a maximum limit for the whole SDK. These threads are cached and only instantiated
+ * when needed. Each handler runs in its own {@link BranchExecutor.Lane}, which runs at most 4
+ * requests at once, so that a busy channel always leaves threads for the others. If we happen
+ * to need more threads, requests wait for currently running requests to finish, higher classes
+ * first, which would have an impact on latency. But this should not happen often, since older
+ * requests are canceled.
  *
- * For this reason we do cancel running tasks but use the same {@link BranchExecutor} to schedule
- * the cancel operations. The cancel op. will free up a running thread for future requests.
+ * To avoid scheduling and canceling during fast typing altogether, POST requests can be
+ * coalesced, see {@link #setCoalescing(long, boolean)}. In this mode, requests are held for a
+ * quiet window, and a new request replaces the held one (which receives REQUEST_CANCELED)
+ * instead of being scheduled right away. Only the last request in the window goes out. So that
+ * steady fast typing does not hold requests back until a pause, a request is sent anyway once
+ * the first request it replaced has waited for a full window.
  *
- * Each POST or GET request can trigger 2 (short-lived) thread requests.
- * The {@link BranchExecutor} pool size is set here to 6, which is just a maximum limit.
- * These threads are cached and only instantiated when needed.
+ * To cut tail latency, POST requests can also be hedged, see {@link #setHedging(float, float)}.
+ * If a request has not answered within a percentile of the recently observed round trip times,
+ * a duplicate request is sent. Whichever succeeds first is delivered, and the other is
+ * canceled. An error is only delivered once both requests failed. A budget caps the extra load
+ * that hedging adds, and no duplicate is sent unless the circuit breaker is closed.
  *
- * If we happen to need more than 6 threads at the same time, requests are enqueued by
- * {@link BranchExecutor} and will wait for currently running ops to finish, which would have
- * an impact on latency. But hopefully this should not happen too often, and some of these busy
- * threads will always be cancel requests that are executed much faster than network request.
+ * Each handler has its own timeout, see {@link #setTimeout(long, boolean)}. An adaptive timeout
+ * follows the recently observed round trip times, so that requests fail fast with
+ * REQUEST_TIMED_OUT_ERR when the answer is already much later than usual. Requests that fail
+ * with a server or transport error can be retried within that timeout, see
+ * {@link #setRetries(int)}. When requests keep failing anyway, a circuit breaker makes them
+ * fail fast instead, see {@link #setCircuitBreaker(float, long)}.
+ *
+ * Requests go to the network through the shared OkHttp client, unless another
+ * {@link BranchTransport} is set, see {@link #setTransport(BranchTransport)}.
+ *
+ * Batches of POST requests are the exception to the canceling policy, see
+ * {@link #executeBatch(String, List, List)}: the requests of a batch run in parallel, and only
+ * the next batch cancels them.
  */
 class URLConnectionNetworkHandler {
 
-    private final BranchExecutor executor = new BranchExecutor(6);
+    // Intervals longer than this are pauses, not typing, and do not count for adaptive windows.
+    private static final long MAX_TYPING_INTERVAL_MILLIS = 2000L;
+    private static final long MIN_COALESCING_WINDOW_MILLIS = 20L;
+    private static final float ADAPTIVE_WINDOW_FACTOR = 1.25F;
+
+    // Hedging needs a few round trip samples before it can pick a delay.
+    private static final int RTT_SAMPLES = 32;
+    private static final int MIN_RTT_SAMPLES = 8;
+    private static final float MAX_HEDGE_TOKENS = 5F;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50L;
+
+    // Adaptive timeouts are a multiple of the recent round trip times, within bounds.
+    private static final float ADAPTIVE_TIMEOUT_PERCENTILE = 0.99F;
+    private static final float ADAPTIVE_TIMEOUT_FACTOR = 3F;
+    private static final long MIN_ADAPTIVE_TIMEOUT_MILLIS = 1000L;
+
+    @VisibleForTesting static final int POOL_SIZE = 6;
+    private static final int CHANNEL_POOL_SIZE = 4;
+    private static final BranchExecutor sExecutor = new BranchExecutor(POOL_SIZE);
+
+    private final BranchExecutor.Lane executor = sExecutor.newLane(CHANNEL_POOL_SIZE);
+    private PriorityClass priorityClass = PriorityClass.SEARCH;
+    private OkHttpClient client;
+    private OkHttpClient clientBase;
+    private BranchTransport transport = BranchTransport.NETWORK;
+    private final BranchChannelMetrics metrics = new BranchChannelMetrics();
     private final Object lock = new Object();
+    private final Handler timer = new Handler(Looper.getMainLooper());
+    private Executor callbackExecutor = Util.MAIN_THREAD_EXECUTOR;
 
-    private URLConnectionTask postTask;
+    private Post post;
+    private URLConnectionTask[] batchTasks;
     private URLConnectionTask getTask;
 
+    private long coalescingWindow;
+    private boolean adaptiveCoalescing;
+    private PendingPost pendingPost;
+    private long pendingSince; // When the first request replaced by pendingPost was held
+    private long lastPostTime = -1;
+    private float typingInterval = -1;
+    // Counters are written while holding the lock, and read without it by metrics snapshots.
+    private volatile int coalescedCount;
+    private volatile int sentCount;
+
+    private float hedgePercentile;
+    private float hedgeBudget;
+    private float hedgeTokens;
+    private final long[] rttSamples = new long[RTT_SAMPLES];
+    private int rttSampleCount;
+    private volatile int hedgeCount;
+    private volatile int hedgeWinCount;
+
+    private long timeoutMillis = URLConnectionTask.CONFIG_TIMEOUT_MILLIS;
+    private boolean adaptiveTimeout;
+    private final BranchRetryPolicy retryPolicy = new BranchRetryPolicy();
+    private final BranchCircuitBreaker circuitBreaker = new BranchCircuitBreaker();
+
+    /**
+     * A POST request, made of a primary task and, if hedging kicks in, a hedge task.
+     * The callback is called exactly once, with the first success. An error only gets through
+     * once the other task, if any, failed too.
+     */
+    private class Post implements Runnable {
+        final String url;
+        final BranchRequestPayload payload;
+        final IURLConnectionEvents callback;
+        final long startTime = SystemClock.elapsedRealtime();
+        URLConnectionTask primary;
+        URLConnectionTask hedge;
+        boolean isPrimaryFailed;
+        boolean isHedgeFailed;
+        boolean isDone;
+
+        Post(@NonNull String url,
+             @NonNull BranchRequestPayload payload,
+             @Nullable IURLConnectionEvents callback) {
+            this.url = url;
+            this.payload = payload;
+            this.callback = callback;
+        }
+
+        // Must be called while holding the lock.
+        void start() {
+            primary = URLConnectionTask.forPost(url, payload, createEvents(false));
+            primary.setTimeout(getTimeout());
+            primary.setRetryPolicy(retryPolicy);
+            primary.setCircuitBreaker(circuitBreaker);
+            startTask(primary, priorityClass);
+            long delay = getHedgeDelay();
+            if (delay >= 0) {
+                timer.postDelayed(this, delay);
+            }
+        }
+
+        // Must be called while holding the lock.
+        void cancel() {
+            timer.removeCallbacks(this);
+            cancelTask(primary);
+            cancelTask(hedge);
+        }
+
+        /**
+         * Hedge timer.
+         */
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (isDone || post != this || hedgeTokens < 1) return;
+                // Don't add load to an endpoint that is failing, or probed.
+                if (circuitBreaker.getState() != BranchMetricsSnapshot.CircuitState.CLOSED) return;
+                hedgeTokens -= 1;
+                hedgeCount++;
+                hedge = URLConnectionTask.forPost(url, payload, createEvents(true));
+                hedge.setTimeout(getTimeout());
+                hedge.setCircuitBreaker(circuitBreaker);
+                startTask(hedge, priorityClass);
+            }
+        }
+
+        @NonNull
+        private PostEvents createEvents(boolean isHedge) {
+            if (callback instanceof IURLConnectionParser) {
+                return new PostParserEvents(this, isHedge);
+            }
+            return new PostEvents(this, isHedge);
+        }
+
+        void onResult(@NonNull JSONObject response, boolean fromHedge) {
+            synchronized (lock) {
+                if (isDone) return;
+                if (response instanceof BranchSearchError) {
+                    // Wait for the other task, if it is still running.
+                    if (fromHedge) {
+                        isHedgeFailed = true;
+                        if (!isPrimaryFailed) return;
+                    } else {
+                        isPrimaryFailed = true;
+                        if (hedge != null && !isHedgeFailed) return;
+                    }
+                }
+                isDone = true;
+                timer.removeCallbacks(this);
+                if (!(response instanceof BranchSearchError)) {
+                    addRttSample(SystemClock.elapsedRealtime() - startTime);
+                    if (fromHedge) hedgeWinCount++;
+                    // The loser is not a cancellation that the caller asked for.
+                    URLConnectionTask loser = fromHedge ? primary : hedge;
+                    if (loser != null) loser.cancel(false);
+                }
+            }
+            if (callback != null) {
+                callback.onResult(response);
+            }
+        }
+    }
+
+    private static class PostEvents implements IURLConnectionEvents {
+        final Post post;
+        private final boolean isHedge;
+
+        PostEvents(@NonNull Post post, boolean isHedge) {
+            this.post = post;
+            this.isHedge = isHedge;
+        }
+
+        @Override
+        public void onResult(@NonNull JSONObject response) {
+            post.onResult(response, isHedge);
+        }
+    }
+
+    private static class PostParserEvents extends PostEvents implements IURLConnectionParser {
+
+        PostParserEvents(@NonNull Post post, boolean isHedge) {
+            super(post, isHedge);
+        }
+
+        @NonNull
+        @Override
+        public Object parse(@NonNull JsonReader reader) throws IOException {
+            return ((IURLConnectionParser) post.callback).parse(reader);
+        }
+    }
+
+    private class PendingPost implements Runnable {
+        final String url;
+        final BranchRequestPayload payload;
+        final IURLConnectionEvents callback;
+
+        PendingPost(@NonNull String url,
+                    @NonNull BranchRequestPayload payload,
+                    @Nullable IURLConnectionEvents callback) {
+            this.url = url;
+            this.payload = payload;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (pendingPost == this) {
+                    pendingPost = null;
+                    startPost(url, payload, callback);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the executor that callbacks are called on. Defaults to the main thread.
+     */
+    void setCallbackExecutor(@NonNull Executor callbackExecutor) {
+        synchronized (lock) {
+            this.callbackExecutor = callbackExecutor;
+        }
+    }
+
+    /**
+     * Sets the transport that sends the requests of this handler, for example a
+     * {@link BranchFakeTransport} to benchmark without a network. Defaults to
+     * {@link BranchTransport#NETWORK}.
+     */
+    void setTransport(@NonNull BranchTransport transport) {
+        synchronized (lock) {
+            this.transport = transport;
+            this.clientBase = null;
+        }
+    }
+
+    /**
+     * Sets the class of the requests of this handler, see {@link BranchExecutor}. Background
+     * requests always have the BACKGROUND class. Defaults to SEARCH.
+     */
+    void setPriorityClass(@NonNull PriorityClass priorityClass) {
+        synchronized (lock) {
+            this.priorityClass = priorityClass;
+        }
+    }
+
+    /**
+     * Enables or disables coalescing of POST requests.
+     * @param windowMillis the quiet window. 0 disables coalescing.
+     * @param adaptive whether the window should adapt to the observed interval between requests.
+     *                 The window never exceeds windowMillis.
+     */
+    void setCoalescing(long windowMillis, boolean adaptive) {
+        synchronized (lock) {
+            coalescingWindow = Math.max(0, windowMillis);
+            adaptiveCoalescing = adaptive;
+        }
+    }
+
     void executePost(@NonNull String url,
-                     @NonNull JSONObject payload,
+                     @NonNull BranchRequestPayload payload,
                      @Nullable IURLConnectionEvents callback) {
         synchronized (lock) {
-            final URLConnectionTask oldTask = postTask;
-            postTask = URLConnectionTask.forPost(url, payload, callback);
-            postTask.executeOnExecutor(executor);
-            cancelTask(oldTask);
+            if (coalescingWindow <= 0) {
+                startPost(url, payload, callback);
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            long window = getCoalescingWindow();
+            if (pendingPost == null) pendingSince = now;
+
+            // Whatever is running or pending is outdated now.
+            if (cancelPendingPost()) coalescedCount++;
+            if (post != null) {
+                post.cancel();
+                post = null;
+            }
+
+            // Wait for a quiet window, but not longer than a full window since the first held
+            // request, or steady typing would delay everything until the user pauses.
+            long delay = Math.min(window, pendingSince + coalescingWindow - now);
+            pendingPost = new PendingPost(url, payload, callback);
+            timer.postDelayed(pendingPost, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Sends several POST requests in parallel. They don't cancel each other, nor the current
+     * POST request, and are neither coalesced nor hedged. A new batch cancels the requests of
+     * the previous batch that are still running.
+     * @param url the url
+     * @param payloads the payload of each request
+     * @param callbacks the callback of each request
+     */
+    void executeBatch(@NonNull String url,
+                      @NonNull List<BranchRequestPayload> payloads,
+                      @NonNull List<? extends IURLConnectionEvents> callbacks) {
+        synchronized (lock) {
+            final URLConnectionTask[] oldTasks = batchTasks;
+            batchTasks = new URLConnectionTask[payloads.size()];
+            for (int i = 0; i < batchTasks.length; i++) {
+                IURLConnectionEvents callback = callbacks.get(i);
+                if (!circuitBreaker.allowRequest()) {
+                    reject(callback);
+                    continue;
+                }
+                URLConnectionTask task = URLConnectionTask.forPost(url, payloads.get(i), callback);
+                task.setTimeout(getTimeout());
+                task.setRetryPolicy(retryPolicy);
+                task.setCircuitBreaker(circuitBreaker);
+                startTask(task, priorityClass);
+                batchTasks[i] = task;
+                sentCount++;
+            }
+            if (oldTasks != null) {
+                for (URLConnectionTask task : oldTasks) cancelTask(task);
+            }
+        }
+    }
+
+    /**
+     * Sends a POST request for background work, like prefetching. It does not cancel other
+     * requests, and nothing cancels it. It is neither coalesced, hedged nor retried.
+     * @param url the url
+     * @param payload the payload
+     * @param callback the callback
+     */
+    void executeBackground(@NonNull String url,
+                           @NonNull BranchRequestPayload payload,
+                           @Nullable IURLConnectionEvents callback) {
+        synchronized (lock) {
+            if (!circuitBreaker.allowRequest()) {
+                reject(callback);
+                return;
+            }
+            URLConnectionTask task = URLConnectionTask.forPost(url, payload, callback);
+            task.setTimeout(getTimeout());
+            task.setCircuitBreaker(circuitBreaker);
+            startTask(task, PriorityClass.BACKGROUND);
+            sentCount++;
+        }
+    }
+
+    /**
+     * Enables or disables hedging of POST requests.
+     * @param percentile the percentile of recent round trip times after which a duplicate
+     *                   request is sent, between 0 and 1 excluded. 0 disables hedging.
+     * @param budget the maximum ratio of hedged requests to requests, e.g. 0.1 for 10%.
+     */
+    void setHedging(float percentile, float budget) {
+        synchronized (lock) {
+            hedgePercentile = Math.max(0F, Math.min(percentile, 0.99F));
+            hedgeBudget = Math.max(0F, budget);
+        }
+    }
+
+    /**
+     * Sets the timeout of requests.
+     * @param timeoutMillis the timeout. If adaptive, this is the maximum timeout.
+     * @param adaptive whether the timeout should follow the recent round trip times.
+     */
+    void setTimeout(long timeoutMillis, boolean adaptive) {
+        synchronized (lock) {
+            this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis
+                    : URLConnectionTask.CONFIG_TIMEOUT_MILLIS;
+            this.adaptiveTimeout = adaptive;
+        }
+    }
+
+    /**
+     * Sets the maximum number of retries of requests that fail with a server or transport
+     * error, see {@link BranchRetryPolicy}.
+     * @param maxRetries the maximum number of retries. 0 disables retries.
+     */
+    void setRetries(int maxRetries) {
+        retryPolicy.setMaxRetries(maxRetries);
+    }
+
+    /**
+     * Configures the circuit breaker of this handler, see {@link BranchCircuitBreaker}.
+     * @param failureRate the ratio of failures that opens the circuit. 0 disables it.
+     * @param openMillis how long the circuit stays open before a probe is sent
+     */
+    void setCircuitBreaker(float failureRate, long openMillis) {
+        circuitBreaker.configure(failureRate, openMillis);
+    }
+
+    @NonNull
+    BranchCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the timeout of the next request, in milliseconds.
+     */
+    long getTimeout() {
+        synchronized (lock) {
+            if (!adaptiveTimeout) return timeoutMillis;
+            long rtt = metrics.getRecentRtt(ADAPTIVE_TIMEOUT_PERCENTILE);
+            if (rtt < 0) return timeoutMillis;
+            long timeout = (long) (rtt * ADAPTIVE_TIMEOUT_FACTOR);
+            return Math.min(timeoutMillis, Math.max(MIN_ADAPTIVE_TIMEOUT_MILLIS, timeout));
         }
     }
 
+    // Must be called while holding the lock.
+    private void startPost(@NonNull String url,
+                           @NonNull BranchRequestPayload payload,
+                           @Nullable IURLConnectionEvents callback) {
+        final Post oldPost = post;
+        if (circuitBreaker.allowRequest()) {
+            post = new Post(url, payload, callback);
+            post.start();
+            sentCount++;
+        } else {
+            post = null;
+            reject(callback);
+        }
+        if (oldPost != null) oldPost.cancel();
+    }
+
+    // Fails a request that was not sent because the circuit is open.
+    private void reject(@Nullable final IURLConnectionEvents callback) {
+        metrics.errorCount.incrementAndGet();
+        if (callback == null) return;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(new BranchSearchError(
+                        BranchSearchError.ERR_CODE.CIRCUIT_OPEN_ERR));
+            }
+        });
+    }
+
+    // Must be called while holding the lock.
+    // Returns the delay after which the current post should be hedged, or -1 for no hedging.
+    private long getHedgeDelay() {
+        if (hedgePercentile <= 0) return -1;
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + hedgeBudget);
+        int count = Math.min(rttSampleCount, RTT_SAMPLES);
+        if (count < MIN_RTT_SAMPLES || hedgeTokens < 1) return -1;
+        long[] sorted = Arrays.copyOf(rttSamples, count);
+        Arrays.sort(sorted);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, sorted[(int) (hedgePercentile * (count - 1))]);
+    }
+
+    // Must be called while holding the lock.
+    private void addRttSample(long rtt) {
+        rttSamples[rttSampleCount % RTT_SAMPLES] = rtt;
+        rttSampleCount++;
+    }
+
+    // Returns whether there was a pending POST request.
+    private boolean cancelPendingPost() {
+        final PendingPost oldPost = pendingPost;
+        if (oldPost == null) return false;
+        pendingPost = null;
+        timer.removeCallbacks(oldPost);
+        metrics.cancelCount.incrementAndGet();
+        if (oldPost.callback != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    oldPost.callback.onResult(new BranchSearchError(
+                            BranchSearchError.ERR_CODE.REQUEST_CANCELED));
+                }
+            });
+        }
+        return true;
+    }
+
+    // Must be called while holding the lock.
+    private long getCoalescingWindow() {
+        long now = SystemClock.elapsedRealtime();
+        if (lastPostTime >= 0) {
+            long interval = now - lastPostTime;
+            if (interval <= MAX_TYPING_INTERVAL_MILLIS) {
+                typingInterval = typingInterval < 0 ? interval
+                        : 0.7F * typingInterval + 0.3F * interval;
+            }
+        }
+        lastPostTime = now;
+
+        if (!adaptiveCoalescing || typingInterval < 0) {
+            return coalescingWindow;
+        } else if (typingInterval > coalescingWindow) {
+            // Requests come slower than the window, so waiting would only add latency.
+            return MIN_COALESCING_WINDOW_MILLIS;
+        } else {
+            long window = (long) (typingInterval * ADAPTIVE_WINDOW_FACTOR);
+            return Math.max(MIN_COALESCING_WINDOW_MILLIS, Math.min(coalescingWindow, window));
+        }
+    }
+
+    @NonNull
+    BranchChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of POST requests that were replaced by a newer one before being sent.
+     */
+    int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return the number of POST requests that were actually sent.
+     */
+    int getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * @return the number of POST requests that were hedged with a duplicate request.
+     */
+    int getHedgeCount() {
+        return hedgeCount;
+    }
+
+    /**
+     * @return the number of hedged POST requests where the duplicate request succeeded first.
+     */
+    int getHedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    void executeGet(@NonNull String url,
+                    @Nullable IURLConnectionEvents callback) {
+        executeGet(url, null, callback);
+    }
+
+    /**
+     * Sends a GET request with extra headers, see
+     * {@link URLConnectionTask#forGet(String, Headers, IURLConnectionEvents)}.
+     */
     void executeGet(@NonNull String url,
+                    @Nullable Headers headers,
                     @Nullable IURLConnectionEvents callback) {
         synchronized (lock) {
             final URLConnectionTask oldTask = getTask;
-            getTask = URLConnectionTask.forGet(url, callback);
-            getTask.executeOnExecutor(executor);
+            if (!circuitBreaker.allowRequest()) {
+                getTask = null;
+                cancelTask(oldTask);
+                reject(callback);
+                return;
+            }
+            getTask = URLConnectionTask.forGet(url, headers, callback);
+            getTask.setTimeout(getTimeout());
+            getTask.setRetryPolicy(retryPolicy);
+            getTask.setCircuitBreaker(circuitBreaker);
+            startTask(getTask, priorityClass);
             cancelTask(oldTask);
         }
     }
 
-    private void cancelTask(final @Nullable URLConnectionTask task) {
-        if (task == null) return;
-        boolean isUiThread = Thread.currentThread() == Looper.getMainLooper().getThread();
-        // If we're on the UI thread, we can't / shouldn't cancel a network op on the UI thread.
-        // If not, we can cancel on current thread without adding workload to the executor.
-        if (isUiThread) {
-            executor.execute(new Runnable() {
+    /**
+     * Cancels the pending POST request, if any. This is used when a request is answered
+     * without going to the network, so that an older response won't be delivered after it.
+     */
+    void cancelPost() {
+        synchronized (lock) {
+            cancelPendingPost();
+            if (post != null) {
+                post.cancel();
+                post = null;
+            }
+        }
+    }
+
+    private void cancelTask(@Nullable URLConnectionTask task) {
+        if (task != null) task.cancel();
+    }
+
+    // Must be called while holding the lock.
+    // Starts a task in our lane of the shared executor, with the given class.
+    private void startTask(@NonNull URLConnectionTask task, @NonNull PriorityClass taskClass) {
+        task.setExecutor(executor, taskClass);
+        task.execute(getClient(), callbackExecutor, metrics);
+    }
+
+    // Must be called while holding the lock.
+    // Returns the shared client, with our interceptor and transport. The shared client can be
+    // replaced in tests, so check that ours is still derived from it.
+    @NonNull
+    private OkHttpClient getClient() {
+        if (clientBase != URLConnectionTask.sClient) {
+            clientBase = URLConnectionTask.sClient;
+            OkHttpClient.Builder builder = clientBase.newBuilder();
+            builder.interceptors().add(0, URLConnectionTask.START_INTERCEPTOR);
+            client = addTransport(builder, transport).build();
+        }
+        return client;
+    }
+
+    /**
+     * Makes a client builder send its requests with the given transport. The transport goes
+     * last, after the interceptors that are already there.
+     * @param builder the builder
+     * @param transport the transport
+     * @return the builder
+     */
+    @NonNull
+    static OkHttpClient.Builder addTransport(@NonNull OkHttpClient.Builder builder,
+                                             @NonNull final BranchTransport transport) {
+        if (transport != BranchTransport.NETWORK) {
+            builder.addInterceptor(new Interceptor() {
                 @Override
-                public void run() {
-                    task.cancel();
+                public Response intercept(@NonNull Chain chain) throws IOException {
+                    return transport.execute(chain);
                 }
             });
-        } else {
-            task.cancel();
         }
+        return builder;
     }
 
     /**
@@ -88,4 +693,12 @@ class URLConnectionNetworkHandler {
         return new URLConnectionNetworkHandler();
     }
 
+    /**
+     * @return the executor that is shared by all handlers.
+     */
+    @NonNull
+    static BranchExecutor getSharedExecutor() {
+        return sExecutor;
+    }
+
 }
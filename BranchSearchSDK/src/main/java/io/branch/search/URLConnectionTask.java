@@ -1,47 +1,203 @@
 package io.branch.search;
 
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import io.branch.search.BranchMetricsSnapshot.PriorityClass;
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import okhttp3.internal.http2.StreamResetException;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 /**
  * URLConnection Task.
  */
-class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
+class URLConnectionTask {
+    private static final String TAG = "BranchURLConnectionTask";
 
-    private static final MediaType POST_JSON = MediaType.parse("application/json; charset=utf-8");
-    private static final long CONFIG_TIMEOUT_MILLIS = 6000;
+    static final MediaType POST_JSON = MediaType.parse("application/json; charset=utf-8");
+    static final long CONFIG_TIMEOUT_MILLIS = 6000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger sReusedConnections = new AtomicInteger();
+    private static final AtomicInteger sNewConnections = new AtomicInteger();
+    private static final long RETRY_TIMER_KEEP_ALIVE_SECONDS = 5L;
+    private static final int DEFAULT_LANE_SIZE = 2;
+
+    /**
+     * Runs the tasks that were not given a lane, and prewarming, in the shared executor. OkHttp's
+     * dispatcher would run each call on a thread of its own just the same, since OkHttp calls
+     * block, and we could not order them by class.
+     */
+    private static class DefaultLane {
+        static final BranchExecutor.Lane LANE =
+                URLConnectionNetworkHandler.getSharedExecutor().newLane(DEFAULT_LANE_SIZE);
+    }
+
+    /**
+     * Waits out retry delays off the main thread, so that a busy main thread does not hold back
+     * retries. It only schedules, the retried call itself runs on the executor or OkHttp, and its
+     * thread goes away when no retry is pending.
+     */
+    private static final ScheduledThreadPoolExecutor sRetryTimer = createRetryTimer();
+
+    @NonNull
+    private static ScheduledThreadPoolExecutor createRetryTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "BranchRetryTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setKeepAliveTime(RETRY_TIMER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+
+    /**
+     * Counts whether each call reused a pooled connection or had to open a new one.
+     */
+    private static final EventListener.Factory CONNECTION_COUNTER = new EventListener.Factory() {
+        @Override
+        public EventListener create(@NonNull Call call) {
+            return new EventListener() {
+                private boolean mConnected;
+
+                @Override
+                public void connectStart(@NonNull Call call,
+                                         @NonNull InetSocketAddress address,
+                                         @NonNull Proxy proxy) {
+                    mConnected = true;
+                }
+
+                @Override
+                public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+                    if (mConnected) {
+                        sNewConnections.incrementAndGet();
+                    } else {
+                        sReusedConnections.incrementAndGet();
+                    }
+                }
+            };
+        }
+    };
 
     @VisibleForTesting
     static OkHttpClient sClient = new OkHttpClient.Builder()
             .callTimeout(CONFIG_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
             .retryOnConnectionFailure(true)
+            .eventListenerFactory(CONNECTION_COUNTER)
             .build();
 
-    private static long sLastPostRTT = -1; // Last post request round trip time
-    private static long sLastGetRTT = -1; // Last get request round trip time
+    // Last round trip times in milliseconds, or -1. They are sent along with the next request,
+    // so whoever reads them resets them.
+    private static final AtomicLong sLastPostRTT = new AtomicLong(-1);
+    private static final AtomicLong sLastGetRTT = new AtomicLong(-1);
+
+    /**
+     * Marks the moment an executor thread starts running a task, to measure queue wait,
+     * and applies the task timeout to connecting and reading.
+     * This must be the first interceptor of the client.
+     */
+    static final Interceptor START_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(@NonNull Chain chain) throws IOException {
+            URLConnectionTask task = chain.request().tag(URLConnectionTask.class);
+            if (task != null) {
+                task.onStarted();
+                int timeout = (int) task.mTimeoutMillis;
+                if (timeout > 0) {
+                    chain = chain.withConnectTimeout(timeout, TimeUnit.MILLISECONDS)
+                            .withReadTimeout(timeout, TimeUnit.MILLISECONDS);
+                }
+            }
+            return chain.proceed(chain.request());
+        }
+    };
+
+    /**
+     * Opens a connection to the host of the given url and leaves it in the connection pool,
+     * so that the next request to this host does not pay for DNS, TCP and TLS setup.
+     * This runs in the background.
+     * @param url any url on the target host
+     */
+    static void prewarm(@NonNull String url) {
+        Uri uri = Uri.parse(url);
+        String root = uri.getScheme() + "://" + uri.getEncodedAuthority() + "/";
+        Request request;
+        try {
+            request = new Request.Builder().url(root).head().build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to prewarm invalid url: " + url);
+            return;
+        }
+        final Call call = sClient.newCall(request);
+        DefaultLane.LANE.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // We don't care about the response, only about the connection. Closing the
+                    // response releases the connection back to the pool.
+                    call.execute().close();
+                } catch (IOException ignore) {
+                }
+            }
+        }, PriorityClass.BACKGROUND);
+    }
+
+    /**
+     * @return the number of calls that reused a pooled connection.
+     */
+    static int getReusedConnectionCount() {
+        return sReusedConnections.get();
+    }
+
+    /**
+     * @return the number of calls that had to open a new connection.
+     */
+    static int getNewConnectionCount() {
+        return sNewConnections.get();
+    }
 
     /**
      * Creates a new task for a GET request.
@@ -52,47 +208,128 @@ class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
     @NonNull
     static URLConnectionTask forGet(@NonNull String url,
                                     @Nullable IURLConnectionEvents callback) {
-        if (sLastGetRTT >= 0) {
+        return forGet(url, null, callback);
+    }
+
+    /**
+     * Creates a new task for a GET request with extra headers, for example to make it
+     * conditional. A 304 Not Modified response is delivered to parsing callbacks as
+     * {@link BranchParsedResponse#NOT_MODIFIED}.
+     * @param url target url
+     * @param headers extra request headers, or null
+     * @param callback callback
+     * @return a new task
+     */
+    @NonNull
+    static URLConnectionTask forGet(@NonNull String url,
+                                    @Nullable Headers headers,
+                                    @Nullable IURLConnectionEvents callback) {
+        long lastRTT = sLastGetRTT.getAndSet(-1);
+        if (lastRTT >= 0) {
             url = Uri.parse(url)
                     .buildUpon()
-                    .appendQueryParameter("lr_rtt", String.valueOf(sLastGetRTT))
+                    .appendQueryParameter("lr_rtt", String.valueOf(lastRTT))
                     .build()
                     .toString();
-            sLastGetRTT = -1;
         }
-        return new URLConnectionTask(url, new Request.Builder().get(), callback, false);
+        Request.Builder builder = new Request.Builder().get();
+        if (headers != null) builder.headers(headers);
+        return new URLConnectionTask(url, builder, callback, false);
     }
 
     /**
      * Creates a new task for a POST request.
      * @param url target url
-     * @param params post params
+     * @param payload the payload, which is streamed into the connection
      * @param callback callback
      * @return a new task
      */
     @NonNull
     static URLConnectionTask forPost(@NonNull String url,
-                                     @NonNull JSONObject params,
+                                     @NonNull BranchRequestPayload payload,
                                      @Nullable IURLConnectionEvents callback) {
-        if (sLastPostRTT >= 0) {
-            try {
-                params.putOpt("lr_rtt", sLastPostRTT);
-            } catch (JSONException ignore) {}
-            sLastPostRTT = -1;
-        }
-        Request.Builder builder = new Request.Builder()
-                .post(RequestBody.create(POST_JSON, params.toString()));
+        RequestBody body = new BranchRequestBody(payload, sLastPostRTT.getAndSet(-1));
+        Request.Builder builder = new Request.Builder().post(body);
         return new URLConnectionTask(url, builder, callback, true);
 
     }
 
+    // Counts the bytes read from a response body.
+    private static class CountingSource extends ForwardingSource {
+        long count;
+
+        CountingSource(@NonNull Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(@NonNull Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    // Callback states. The callback is called exactly once, with the result or with
+    // REQUEST_CANCELED, whichever is first. A result that was handed to the callback executor
+    // can still be canceled until it actually runs.
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RESULT_POSTED = 1;
+    private static final int STATE_DONE = 2;
+
     private final String mUrl;
     private final IURLConnectionEvents mCallback;
     private final Request.Builder mBuilder;
-    private final Object mCallbackCalledLock = new Object();
     private final boolean mIsPost;
-    private boolean mCallbackCalled;
-    @VisibleForTesting Call mCall;
+    private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+    private Executor mCallbackExecutor = Util.MAIN_THREAD_EXECUTOR;
+    private BranchChannelMetrics mMetrics;
+    private long mScheduledNanos;
+    private long mTimeoutMillis;
+    private BranchRetryPolicy mRetryPolicy;
+    private BranchCircuitBreaker mCircuitBreaker;
+    private OkHttpClient mClient;
+    private Request mRequest;
+    private volatile int mRetries;
+    private volatile long mStartedNanos;
+    private BranchExecutor.Lane mExecutor;
+    private PriorityClass mPriorityClass = PriorityClass.SEARCH;
+    private volatile Runnable mQueuedCall;
+    @VisibleForTesting volatile Call mCall;
+
+    // Handles the outcome of each call of the request, the first one or a retry.
+    private final Callback mResponseCallback = new Callback() {
+        @Override
+        public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            if (call.isCanceled()) {
+                // We did not cancel it, or the callback would be claimed already: the call
+                // timeout did. Depending on where the call was, OkHttp may not say so.
+                postResult(new BranchSearchError(
+                        BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR));
+            } else if (e instanceof UnknownHostException || !retry()) {
+                // Without connectivity, a retry would fail the same way.
+                postResult(convertException(e));
+            }
+        }
+
+        @Override
+        public void onResponse(@NonNull Call call, @NonNull Response response) {
+            try {
+                if (response.code() >= 500 && retry()) return;
+                JSONObject result = readResponse(response);
+                if (mRetryPolicy != null && !(result instanceof BranchSearchError)) {
+                    mRetryPolicy.onSuccess();
+                }
+                postResult(result);
+            } catch (IOException e) {
+                postResult(convertException(e));
+            } finally {
+                try {
+                    response.close();
+                } catch (Exception ignore) {}
+            }
+        }
+    };
 
     private URLConnectionTask(@NonNull String url,
                               @NonNull Request.Builder builder,
@@ -104,37 +341,59 @@ class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
         mIsPost = isPost;
     }
 
-    @Override
-    protected void onPostExecute(JSONObject jsonObject) {
-        super.onPostExecute(jsonObject);
-        synchronized (mCallbackCalledLock) {
-            if (!mCallbackCalled) {
-                if (mCallback != null) {
-                    mCallback.onResult(jsonObject);
-                }
-                mCallbackCalled = true;
-            }
-        }
+    /**
+     * Sets the timeout of this task, which replaces the client call, connect and read timeouts.
+     * Timing out delivers REQUEST_TIMED_OUT_ERR. This must be called before executing.
+     * @param timeoutMillis the timeout in milliseconds, or 0 to use the client timeouts
+     */
+    void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = Math.max(0, timeoutMillis);
     }
 
-    @Override
-    protected void onCancelled() {
-        super.onCancelled();
-        synchronized (mCallbackCalledLock) {
-            if (!mCallbackCalled) {
-                // Ensure we call our callback with the appropriate code.
-                if (mCallback != null) {
-                    mCallback.onResult(new BranchSearchError(
-                            BranchSearchError.ERR_CODE.REQUEST_CANCELED));
-                }
-                mCallbackCalled = true;
-            }
-        }
+    /**
+     * Sets the retry policy of this task. Requests that fail with a server or transport error
+     * are retried within the timeout, if the policy allows it. This must be called before
+     * executing.
+     * @param retryPolicy the policy, or null to never retry
+     */
+    void setRetryPolicy(@Nullable BranchRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the circuit breaker that records the outcome of this task. This must be called
+     * before executing.
+     * @param circuitBreaker the circuit breaker, or null
+     */
+    void setCircuitBreaker(@Nullable BranchCircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
     }
 
+    /**
+     * Runs the calls of this task in the given lane of a {@link BranchExecutor}, with the given
+     * class. This must be called before executing.
+     * @param executor the lane, or null to use a lane of the shared executor
+     * @param priorityClass the class of this task
+     */
+    void setExecutor(@Nullable BranchExecutor.Lane executor,
+                     @NonNull PriorityClass priorityClass) {
+        mExecutor = executor;
+        mPriorityClass = priorityClass;
+    }
 
-    @Override
-    protected JSONObject doInBackground(Void... voids) {
+    /**
+     * Enqueues this task on the given client. The request runs on the executor given to
+     * {@link #setExecutor(BranchExecutor.Lane, PriorityClass)}, or else in a lane of the shared
+     * executor, and the result is delivered on the given callback executor.
+     * @param client the client
+     * @param callbackExecutor the executor that runs the callback
+     * @param metrics where to record timings and outcome, or null
+     */
+    void execute(@NonNull OkHttpClient client,
+                 @NonNull Executor callbackExecutor,
+                 @Nullable BranchChannelMetrics metrics) {
+        mCallbackExecutor = callbackExecutor;
+        mMetrics = metrics;
         // If POST, we should have Content-Type: application/json in the request,
         // but this should be already done by OkHttp when creating the post body.
         mBuilder.addHeader("Accept", "application/json");
@@ -143,96 +402,288 @@ class URLConnectionTask extends AsyncTask<Void, Void, JSONObject> {
         // OkHttp will not automatically unzip the response, which would be an issue.
         // mBuilder.addHeader("Accept-Encoding", "gzip");
         mBuilder.url(mUrl);
-        return executeRequest();
+
+        mBuilder.tag(URLConnectionTask.class, this);
+        mClient = client;
+        if (mExecutor == null) mExecutor = DefaultLane.LANE;
+        mRequest = mBuilder.build();
+        mScheduledNanos = System.nanoTime();
+        enqueue();
     }
 
-    @NonNull
-    private JSONObject executeRequest() {
-        long startTime = System.currentTimeMillis();
-        mCall = sClient.newCall(mBuilder.build());
-        Response response = null;
+    // Enqueues a new call of the request, the first one or a retry.
+    private void enqueue() {
+        Call call = mClient.newCall(mRequest);
+        mCall = call;
+        if (mState.get() == STATE_DONE) {
+            // Canceled before it even started.
+            call.cancel();
+            return;
+        }
+        if (mRetries > 0) {
+            // Retries only get what is left of the budget.
+            call.timeout().timeout(getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } else if (mTimeoutMillis > 0) {
+            call.timeout().timeout(mTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        final Call executorCall = call;
+        mQueuedCall = mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executeCall(executorCall);
+            }
+        }, mPriorityClass);
+    }
+
+    // Runs a call on the current executor thread.
+    @WorkerThread
+    private void executeCall(@NonNull Call call) {
+        if (mState.get() == STATE_DONE) return;
         try {
-            // Execute the call and save the RTT
-            response = mCall.execute();
-            long endTime = System.currentTimeMillis();
-            if (mIsPost) {
-                sLastPostRTT = endTime - startTime;
-            } else {
-                sLastGetRTT = endTime - startTime;
+            // Our callback handles its own IOExceptions, so this only catches the call's.
+            mResponseCallback.onResponse(call, call.execute());
+        } catch (IOException e) {
+            mResponseCallback.onFailure(call, e);
+        }
+    }
+
+    // Schedules a retry of the request if the policy allows it, and returns whether it did.
+    @WorkerThread
+    private boolean retry() {
+        if (mRetryPolicy == null || mState.get() != STATE_PENDING) return false;
+        long delay = mRetryPolicy.getRetryDelay(mRetries, getRemainingMillis());
+        if (delay < 0) return false;
+        mRetries++;
+        if (mMetrics != null) mMetrics.retryCount.incrementAndGet();
+        sRetryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue();
             }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
-            // Check the response code
-            // If >= 500, retry or return a server error..
-            int code = response.code();
-            if (code >= 500) {
-                return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+    // Returns the time left in the latency budget of this task.
+    private long getRemainingMillis() {
+        long budget = mTimeoutMillis > 0 ? mTimeoutMillis : mClient.callTimeoutMillis();
+        if (budget <= 0) return Long.MAX_VALUE;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mScheduledNanos);
+        return Math.max(1, budget - elapsed);
+    }
+
+    /**
+     * Enqueues this task on the shared client, and delivers the result on the main thread.
+     */
+    void execute() {
+        execute(sClient, Util.MAIN_THREAD_EXECUTOR, null);
+    }
+
+    /**
+     * Cancels this task. If the callback was not called yet, it will be called with
+     * REQUEST_CANCELED. This does not block, and is safe to call from any thread.
+     */
+    void cancel() {
+        cancel(true);
+    }
+
+    /**
+     * Cancels this task, see {@link #cancel()}.
+     * @param isCounted whether the cancellation counts in the metrics. A hedge that lost the
+     *                  race is not a cancellation that the caller asked for.
+     */
+    void cancel(boolean isCounted) {
+        // Claim the callback first, then cancel the OkHttp call. If we do the opposite, the
+        // call can fail with a quick IOException and deliver UNKNOWN_ERR instead.
+        while (true) {
+            int state = mState.get();
+            if (state == STATE_DONE) break;
+            if (mState.compareAndSet(state, STATE_DONE)) {
+                if (mMetrics != null && isCounted) mMetrics.cancelCount.incrementAndGet();
+                if (mCircuitBreaker != null && state == STATE_PENDING) {
+                    mCircuitBreaker.onCanceled();
+                }
+                deliverCanceled();
+                break;
+            }
+        }
+        // Free the queue right away if the call did not start yet.
+        Runnable queuedCall = mQueuedCall;
+        if (queuedCall != null) mExecutor.remove(queuedCall);
+        Call call = mCall;
+        if (call != null) call.cancel();
+    }
+
+    private void postResult(@NonNull final JSONObject result) {
+        if (!mState.compareAndSet(STATE_PENDING, STATE_RESULT_POSTED)) return;
+        if (mCircuitBreaker != null) mCircuitBreaker.onResult(result);
+        if (mMetrics != null && result instanceof BranchSearchError
+                && ((BranchSearchError) result).getErrorCode()
+                == BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR) {
+            // A call that timed out took at least its timeout. Without this sample, an adaptive
+            // timeout that became too short for the network would never grow back.
+            long start = mStartedNanos != 0 ? mStartedNanos : mScheduledNanos;
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            mMetrics.addRecentRtt(Math.max(elapsed, mTimeoutMillis));
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mState.compareAndSet(STATE_RESULT_POSTED, STATE_DONE)) return;
+                if (mMetrics != null) {
+                    mMetrics.endToEnd.record(System.nanoTime() - mScheduledNanos);
+                    if (result instanceof BranchSearchError) {
+                        mMetrics.errorCount.incrementAndGet();
+                    } else {
+                        mMetrics.resultCount.incrementAndGet();
+                    }
+                }
+                if (mCallback != null) {
+                    mCallback.onResult(result);
+                }
+            }
+        });
+    }
+
+    private void deliver(@NonNull final JSONObject result) {
+        if (mCallback == null) return;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onResult(result);
             }
+        });
+    }
 
-            // This should never happen...?
-            if (response.body() == null) {
-                return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
+    // Delivers REQUEST_CANCELED, and reports how long it took to reach the callback.
+    private void deliverCanceled() {
+        final BranchSearchError error
+                = new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_CANCELED);
+        final IBranchInstrumentationListener listener = BranchExecutor.getListener();
+        if (listener == null || mCallback == null) {
+            deliver(error);
+            return;
+        }
+        final long canceledNanos = System.nanoTime();
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTaskCanceled(mPriorityClass, System.nanoTime() - canceledNanos);
+                mCallback.onResult(error);
             }
+        });
+    }
+
+    @WorkerThread
+    private void onStarted() {
+        mStartedNanos = System.nanoTime();
+        if (mMetrics != null && mRetries == 0) {
+            mMetrics.queueWait.record(mStartedNanos - mScheduledNanos);
+        }
+    }
 
-            // At this point we should have a valid server response
-            String body = response.body().string();
-            JSONObject result;
+    @WorkerThread
+    @NonNull
+    private JSONObject readResponse(@NonNull Response response) throws IOException {
+        // Save the RTT, not counting the time spent waiting for a thread.
+        long now = System.nanoTime();
+        long start = mStartedNanos != 0 ? mStartedNanos : mScheduledNanos;
+        long rtt = TimeUnit.NANOSECONDS.toMillis(now - start);
+        (mIsPost ? sLastPostRTT : sLastGetRTT).set(rtt);
+        if (mMetrics != null) mMetrics.addRecentRtt(rtt);
+
+        // Check the response code
+        // If >= 500, return a server error. Retries are decided before reading.
+        int code = response.code();
+        if (code >= 500) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+        }
+
+        // This should never happen...?
+        if (response.body() == null) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
+        }
+
+        // Only conditional requests are answered with 304, and they have nothing to parse.
+        if (code == 304 && mCallback instanceof IURLConnectionParser) {
+            return new BranchParsedResponse(BranchParsedResponse.NOT_MODIFIED, response.headers());
+        }
+
+        // If the callback knows how to parse the response, let it read the stream directly.
+        // Parsers need a parsed response, so any success code is parsed.
+        if (code >= 200 && code < 300 && mCallback instanceof IURLConnectionParser) {
+            ResponseBody body = response.body();
+            CountingSource source = new CountingSource(body.source());
+            MediaType contentType = body.contentType();
+            Charset charset = contentType != null ? contentType.charset(UTF_8) : null;
+            JsonReader reader = new JsonReader(new InputStreamReader(
+                    Okio.buffer(source).inputStream(), charset != null ? charset : UTF_8));
             try {
-                result = new JSONObject(body);
-            } catch (JSONException ignore) {
+                Object parsed = ((IURLConnectionParser) mCallback).parse(reader);
+                if (mMetrics != null) mMetrics.parse.record(System.nanoTime() - now);
+                return new BranchParsedResponse(parsed, response.headers(), source.count);
+            } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
                 return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
             }
+        }
 
-            if (code == 200) {
-                // If code == 200, the response body is also our response.
-                return result;
-            } else {
-                // Try to parse an error.
-                try {
-                    if (result.has("error") && result.getJSONObject("error").has("message")) {
-                        return new BranchSearchError(result.getJSONObject("error"));
-                    } else if (result.has("code") && result.has("message")) {
-                        return new BranchSearchError(result);
+        // At this point we should have a valid server response
+        String body = response.body().string();
+        JSONObject result;
+        try {
+            result = new JSONObject(body);
+        } catch (JSONException ignore) {
+            return new BranchSearchError(BranchSearchError.ERR_CODE.INTERNAL_SERVER_ERR);
+        }
+        if (code == 200 && mMetrics != null) {
+            mMetrics.parse.record(System.nanoTime() - now);
+        }
+
+        if (code == 200) {
+            // If code == 200, the response body is also our response.
+            return result;
+        } else {
+            // Try to parse an error.
+            try {
+                if (result.has("error") && result.getJSONObject("error").has("message")) {
+                    return new BranchSearchError(result.getJSONObject("error"));
+                } else if (result.has("code") && result.has("message")) {
+                    return new BranchSearchError(result);
+                } else {
+                    // Not 200, but does not fit our BranchSearchError scheme.
+                    // Return a custom error if >= 400, otherwise return itself.
+                    if (code >= 400 || mCallback instanceof IURLConnectionParser) {
+                        return new BranchSearchError(BranchSearchError.ERR_CODE.convert(code));
                     } else {
-                        // Not 200, but does not fit our BranchSearchError scheme.
-                        // Return a custom error if >= 400, otherwise return itself.
-                        if (code >= 400) {
-                            return new BranchSearchError(BranchSearchError.ERR_CODE.convert(code));
-                        } else {
-                            return result;
-                        }
+                        return result;
                     }
-                } catch (JSONException e) {
-                    // Not 200, but something when wrong when inspecting the result. Return itself.
-                    return result;
                 }
+            } catch (JSONException e) {
+                // Not 200, but something when wrong when inspecting the result. Return itself,
+                // unless the callback expects a parsed response.
+                if (mCallback instanceof IURLConnectionParser) {
+                    return new BranchSearchError(BranchSearchError.ERR_CODE.convert(code));
+                }
+                return result;
             }
-        } catch (StreamResetException | SocketException | InterruptedIOException e) {
-            // The meaning of exceptions in these catch blocks is not documented - at least,
-            // it's not clear which exceptions are thrown by OkHttp. And even worse, their
-            // meaning changes based on the retryOnConnectionFailure() value.
-            // If retryOnConnectionFailure() is set to false, please replace InterruptedIOException
-            // with SocketTimeoutException here.
+        }
+    }
+
+    @NonNull
+    private static JSONObject convertException(@NonNull IOException e) {
+        // The meaning of exceptions here is not documented - at least, it's not clear which
+        // exceptions are thrown by OkHttp. And even worse, their meaning changes based on
+        // the retryOnConnectionFailure() value.
+        // If retryOnConnectionFailure() is set to false, please replace InterruptedIOException
+        // with SocketTimeoutException here.
+        if (e instanceof StreamResetException
+                || e instanceof SocketException
+                || e instanceof InterruptedIOException) {
             return new BranchSearchError(BranchSearchError.ERR_CODE.REQUEST_TIMED_OUT_ERR);
-        } catch (UnknownHostException e) {
+        } else if (e instanceof UnknownHostException) {
             return new BranchSearchError(BranchSearchError.ERR_CODE.BRANCH_NO_CONNECTIVITY_ERR);
-        } catch (IOException e) {
+        } else {
             return new BranchSearchError(BranchSearchError.ERR_CODE.UNKNOWN_ERR);
-        } finally {
-            if (response != null) {
-                try {
-                    response.close();
-                } catch (Exception ignore) {}
-            }
         }
     }
-
-    @WorkerThread
-    void cancel() {
-        // Cancel AsyncTask first, then the OkHttp call. If we do the opposite,
-        // the executeRequest method can receive a quick IOException and return UNKNOWN_ERR.
-        // By canceling the AsyncTask first, we should get the cancel callback first,
-        // and correctly dispatch the REQUEST_CANCELED error.
-        cancel(true);
-        if (mCall != null)  mCall.cancel();
-    }
 }
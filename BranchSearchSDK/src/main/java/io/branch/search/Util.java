@@ -1,16 +1,28 @@
 package io.branch.search;
 
+import android.Manifest;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.JsonReader;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Created by sojanpr on 3/17/18.
@@ -20,6 +32,7 @@ import java.util.Locale;
  */
 class Util {
     private static String isoCountryCode;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Return the ISO2 Country Code.
@@ -98,6 +111,45 @@ class Util {
         return tmpLocale;
     }
 
+    /**
+     * Returns whether the active network may cost the user money. Without the
+     * ACCESS_NETWORK_STATE permission, we can't tell, so we assume it does.
+     * @param context Context
+     * @return true if the active network is metered, or unknown.
+     */
+    static boolean isNetworkMetered(Context context) {
+        if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return true;
+        }
+        ConnectivityManager manager = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) return true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return manager.isActiveNetworkMetered();
+        }
+        return !isActiveNetworkWifi(manager);
+    }
+
+    // Before API 16, there is no isActiveNetworkMetered(), and since our minSdk is 15 the
+    // deprecated NetworkInfo is the only way to tell. We assume only Wi-Fi is unmetered.
+    @SuppressWarnings("deprecation")
+    private static boolean isActiveNetworkWifi(ConnectivityManager manager) {
+        NetworkInfo info = manager.getActiveNetworkInfo();
+        return info != null && info.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * Posts runnables to the main thread, where results are delivered by default.
+     * See {@link BranchConfiguration#setCallbackExecutor(Executor)}.
+     */
+    static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            sMainHandler.post(runnable);
+        }
+    };
+
     static boolean openApp(Context context, boolean fallbackToPlayStore, String destinationStoreID) {
         if (!TextUtils.isEmpty(destinationStoreID)) {
             try {
@@ -151,7 +203,98 @@ class Util {
             return json.optString(key, "");
     }
 
+    /**
+     * Read the next value as a String, with the same semantics as {@link #optString(JSONObject, String)}.
+     * @param reader JsonReader
+     * @return the value as a String, or the Empty String if null.
+     */
+    static String nextString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return "";
+            default:
+                return String.valueOf(nextValue(reader));
+        }
+    }
+
+    /**
+     * Read the next value as a double, with the same semantics as {@link JSONObject#optDouble(String, double)}.
+     * @param reader JsonReader
+     * @param fallback value to return if the next value is not a number
+     * @return the value as a double.
+     */
+    static double nextDouble(JsonReader reader, double fallback) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                try {
+                    return Double.parseDouble(reader.nextString());
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            default:
+                reader.skipValue();
+                return fallback;
+        }
+    }
 
+    /**
+     * Read the next value as a JSONObject, or null if it is not an object.
+     * @param reader JsonReader
+     * @return the value as a JSONObject.
+     */
+    static JSONObject nextJSONObject(JsonReader reader) throws IOException {
+        Object value = nextValue(reader);
+        return value instanceof JSONObject ? (JSONObject) value : null;
+    }
 
+    /**
+     * Read the next value, building JSONObject and JSONArray trees for objects and arrays.
+     * @param reader JsonReader
+     * @return the value.
+     */
+    static Object nextValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    try {
+                        object.put(name, nextValue(reader));
+                    } catch (JSONException ignore) {
+                    }
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(nextValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
 }
-